@@ -14,6 +14,9 @@ from datetime import datetime
 # Database file
 DB_FILE = 'stomp_server.db'
 
+# Requests starting with this carry several statements, see execute_batch
+BATCH_PREFIX = 'BATCH '
+
 def init_database():
     """Initialize the database with required tables"""
     conn = sqlite3.connect(DB_FILE)
@@ -55,53 +58,99 @@ def init_database():
     conn.close()
     print("Database initialized successfully")
 
-def execute_sql(sql_command):
+def run_statement(cursor, sql_command):
+    """Execute one SQL command without committing and return its result"""
+    cursor.execute(sql_command)
+    
+    # Check if it's a SELECT query
+    if sql_command.strip().upper().startswith('SELECT'):
+        results = cursor.fetchall()
+        return f"SUCCESS:{len(results)}|" + "|".join([str(row) for row in results])
+    else:
+        # For INSERT, UPDATE, DELETE
+        return f"SUCCESS:{cursor.rowcount}"
+
+def execute_sql(conn, sql_command):
     """Execute SQL command and return result"""
     try:
-        conn = sqlite3.connect(DB_FILE)
-        cursor = conn.cursor()
-        
-        # Execute the SQL command
-        cursor.execute(sql_command)
-        
-        # Check if it's a SELECT query
-        if sql_command.strip().upper().startswith('SELECT'):
-            results = cursor.fetchall()
-            conn.close()
-            return f"SUCCESS:{len(results)}|" + "|".join([str(row) for row in results])
-        else:
-            # For INSERT, UPDATE, DELETE
-            conn.commit()
-            affected_rows = cursor.rowcount
-            conn.close()
-            return f"SUCCESS:{affected_rows}"
+        result = run_statement(conn.cursor(), sql_command)
+        conn.commit()
+        return result
             
     except sqlite3.Error as e:
+        conn.rollback()
         return f"ERROR:{str(e)}"
     except Exception as e:
+        conn.rollback()
         return f"ERROR:{str(e)}"
 
+def parse_batch(request):
+    """Split 'BATCH <n>\n' followed by n '<length>\n<statement>' entries.
+    Lengths count characters (code points)."""
+    header_end = request.index('\n')
+    count = int(request[len(BATCH_PREFIX):header_end])
+    statements = []
+    pos = header_end + 1
+    for _ in range(count):
+        length_end = request.index('\n', pos)
+        length = int(request[pos:length_end])
+        statements.append(request[length_end + 1:length_end + 1 + length])
+        pos = length_end + 1 + length
+    return statements
+
+def execute_batch(conn, request):
+    """Execute all statements of a batch in one transaction.
+    Returns 'BATCH <n>\n' followed by one '<length>\n<result>' entry per statement.
+    If a statement fails nothing is committed: it reports its error, the others 'ERROR:rolled back'."""
+    try:
+        statements = parse_batch(request)
+    except ValueError as e:
+        return f"ERROR:malformed batch: {e}"
+
+    results = []
+    cursor = conn.cursor()
+    try:
+        for sql in statements:
+            results.append(run_statement(cursor, sql))
+        conn.commit()
+    except Exception as e:
+        conn.rollback()
+        failed = len(results)
+        results = ['ERROR:rolled back'] * len(statements)
+        if failed < len(results):
+            results[failed] = f"ERROR:{str(e)}"
+        else: # the commit itself failed
+            results = [f"ERROR:{str(e)}"] * len(statements)
+
+    return f"BATCH {len(results)}\n" + "".join(f"{len(r)}\n{r}" for r in results)
+
 def handle_client(client_socket, addr):
     """Handle client connection"""
     print(f"Client connected from {addr}")
     
+    # The connection is long-lived (the Java side pools it), so bytes past a
+    # terminator are kept for the next request instead of being dropped
+    pending = bytearray()
+    # One long-lived SQLite connection per client, instead of one per statement
+    conn = sqlite3.connect(DB_FILE)
     try:
         while True:
             # Receive SQL command (terminated by null character)
-            data = b''
-            while True:
-                chunk = client_socket.recv(1024)
+            end = pending.find(b'\0')
+            while end < 0:
+                chunk = client_socket.recv(65536)
                 if not chunk:
                     break
-                data += chunk
-                if b'\0' in data:
-                    break
+                searched = len(pending)
+                pending += chunk
+                end = pending.find(b'\0', searched)
             
-            if not data:
+            if end < 0:
                 break
                 
             # Remove null terminator and decode
-            sql_command = data.rstrip(b'\0').decode('utf-8')
+            sql_command = pending[:end].decode('utf-8')
+            del pending[:end + 1]
             
             if not sql_command:
                 break
@@ -109,7 +158,10 @@ def handle_client(client_socket, addr):
             print(f"Executing SQL: {sql_command[:100]}...")
             
             # Execute SQL and get result
-            result = execute_sql(sql_command)
+            if sql_command.startswith(BATCH_PREFIX):
+                result = execute_batch(conn, sql_command)
+            else:
+                result = execute_sql(conn, sql_command)
             
             # Send result back with null terminator
             client_socket.sendall((result + '\0').encode('utf-8'))
@@ -117,6 +169,7 @@ def handle_client(client_socket, addr):
     except Exception as e:
         print(f"Error handling client {addr}: {e}")
     finally:
+        conn.close()
         client_socket.close()
         print(f"Client {addr} disconnected")
 
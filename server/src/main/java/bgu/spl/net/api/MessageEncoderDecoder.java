@@ -1,5 +1,9 @@
 package bgu.spl.net.api;
 
+import java.nio.ByteBuffer;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
 public interface MessageEncoderDecoder<T> {
 
     /**
@@ -11,6 +15,44 @@ public interface MessageEncoderDecoder<T> {
      */
     T decodeNextByte(byte nextByte);
 
+    /**
+     * decodes every message completed by the given bytes, in order. bytes of a
+     * message that is not complete yet are kept for the next call.
+     * the default implementation feeds the bytes one by one to decodeNextByte,
+     * codecs that can scan a whole buffer should override it.
+     *
+     * @param in the bytes to decode, consumed up to its limit
+     * @param out receives each decoded message, a message may only be valid
+     * until out returns
+     */
+    default void decode(ByteBuffer in, Consumer<T> out) {
+        while (in.hasRemaining()) {
+            T nextMessage = decodeNextByte(in.get());
+            if (nextMessage != null) {
+                out.accept(nextMessage);
+            }
+        }
+    }
+
+    /**
+     * like decode, but stops at the first message out rejects. the bytes after
+     * it are left in the given buffer for a later call.
+     *
+     * @param in the bytes to decode, consumed up to the rejected message
+     * @param out returns false for a message it doesn't take
+     * @return the rejected message, valid until the next call to this decoder,
+     * or null if out took every message
+     */
+    default T decodeUntil(ByteBuffer in, Predicate<T> out) {
+        while (in.hasRemaining()) {
+            T nextMessage = decodeNextByte(in.get());
+            if (nextMessage != null && !out.test(nextMessage)) {
+                return nextMessage;
+            }
+        }
+        return null;
+    }
+
     /**
      * encodes the given message to bytes array
      *
@@ -19,4 +61,25 @@ public interface MessageEncoderDecoder<T> {
      */
     byte[] encode(T message);
 
+    /**
+     * encodes the given message into buffers that are written in order.
+     * the buffers may be shared with other encoded messages, so they must not be
+     * modified. the default implementation wraps the result of encode.
+     *
+     * @param message the message to encode
+     * @return the encoded buffers
+     */
+    default ByteBuffer[] encodeBuffers(T message) {
+        return new ByteBuffer[] { ByteBuffer.wrap(encode(message)) };
+    }
+
+    /**
+     * called once the buffers encoded for this message were written or dropped,
+     * so memory shared between messages can be reclaimed.
+     *
+     * @param message the message that is no longer needed
+     */
+    default void release(T message) {
+    }
+
 }
@@ -0,0 +1,90 @@
+package bgu.spl.net.api;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable, reference counted bytes shared by several encoded messages (e.g. the body of a
+ * MESSAGE frame sent to every subscriber of a channel).
+ * Small contents live in pooled direct buffers that go back to the pool once the last
+ * reference is released, a missed release only means the buffer is left to the GC.
+ */
+public final class SharedBuffer {
+
+    private static final int POOLED_CAPACITY = 1 << 13; //8k
+    private static final ConcurrentLinkedQueue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+
+    private final ByteBuffer backing;
+    private final ByteBuffer content;
+    private final boolean pooled;
+    private final AtomicInteger references = new AtomicInteger(1);
+
+    private SharedBuffer(ByteBuffer backing, boolean pooled) {
+        this.backing = backing;
+        this.content = backing.asReadOnlyBuffer();
+        this.pooled = pooled;
+    }
+
+    /**
+     * Copies the remaining bytes of the given parts, in order, into a new shared buffer.
+     * The parts' positions are left untouched.
+     * @return a shared buffer holding one reference, owned by the caller
+     */
+    public static SharedBuffer copyOf(ByteBuffer... parts) {
+        int size = 0;
+        for (ByteBuffer part : parts) {
+            size += part.remaining();
+        }
+
+        boolean pooled = size <= POOLED_CAPACITY;
+        ByteBuffer backing = pooled ? leaseBuffer() : ByteBuffer.allocate(size);
+        for (ByteBuffer part : parts) {
+            backing.put(part.duplicate());
+        }
+        backing.flip();
+        return new SharedBuffer(backing, pooled);
+    }
+
+    /**
+     * @return a new read-only view over the content, with its own position
+     */
+    public ByteBuffer view() {
+        return content.duplicate();
+    }
+
+    public int size() {
+        return content.remaining();
+    }
+
+    /**
+     * Adds a reference, to be given up later with release
+     */
+    public SharedBuffer retain() {
+        if (references.getAndIncrement() <= 0)
+            throw new IllegalStateException("Buffer was already released!");
+        return this;
+    }
+
+    /**
+     * Gives up one reference, the last one returns the memory to the pool
+     */
+    public void release() {
+        int left = references.decrementAndGet();
+        if (left < 0)
+            throw new IllegalStateException("Buffer released too many times!");
+        if (left == 0 && pooled) {
+            POOL.add(backing);
+        }
+    }
+
+    private static ByteBuffer leaseBuffer() {
+        ByteBuffer buff = POOL.poll();
+        if (buff == null) {
+            return ByteBuffer.allocateDirect(POOLED_CAPACITY);
+        }
+
+        buff.clear();
+        return buff;
+    }
+}
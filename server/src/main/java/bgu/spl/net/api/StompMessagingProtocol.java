@@ -14,4 +14,36 @@ public interface StompMessagingProtocol<T>  {
      * @return true if the connection should be terminated
      */
     boolean shouldTerminate();
+
+    /**
+     * @return true if processing the message is short and never blocks (no database or other I/O),
+     * so a reactor may run it on its selector thread
+     */
+    default boolean isInlineSafe(T message) {
+        return false;
+    }
+
+    /**
+     * Called once the connection is gone, however it ended (DISCONNECT, the peer closing it, a
+     * heart-beat timeout), on the thread that runs process
+     */
+    default void connectionClosed() {
+    }
+
+    /**
+     * Called on the sending thread, so it may only look at the message
+     * @return the key of an outbound message a slow consumer may miss, a later message with an
+     * equal key supersedes it. Null if it must be delivered.
+     */
+    default Object conflationKey(T message) {
+        return null;
+    }
+
+    /**
+     * @return the last message to send to a connection dropped for not keeping up with its
+     * outbound messages, null to just close it
+     */
+    default T slowConsumerError() {
+        return null;
+    }
 }
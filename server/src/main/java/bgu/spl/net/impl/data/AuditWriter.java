@@ -0,0 +1,170 @@
+package bgu.spl.net.impl.data;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A write-behind queue for audit statements (registrations, logins, logouts, file uploads).
+ * Callers only enqueue; a dedicated writer thread hands the statements to the sink in batches of
+ * up to batchSize, waiting at most flushIntervalMillis for a batch to fill. Statements are written
+ * in the order they were submitted.
+ * When the queue is full the overflow policy applies: DROP (the default) discards the statement
+ * and counts it, so the caller never blocks; BLOCK waits for room.
+ * Statements the sink reports as failed are counted apart from those written.
+ */
+public class AuditWriter {
+
+	public enum Overflow {
+		DROP, BLOCK
+	}
+
+	public interface Sink {
+		/**
+		 * Writes a batch, a statement whose outcome is unknown counts as failed
+		 * @return how many of the statements failed
+		 */
+		int write(List<String> statements);
+	}
+
+	private final ArrayBlockingQueue<String> queue;
+	private final Sink sink;
+	private final int batchSize;
+	private final long flushIntervalMillis;
+	private final Overflow overflow;
+	private final Thread writer;
+	private volatile boolean closed = false;
+
+	//metrics
+	private final AtomicLong submitted = new AtomicLong();
+	private final AtomicLong written = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+
+	public AuditWriter(Sink sink, int capacity, int batchSize, long flushIntervalMillis, Overflow overflow) {
+		if (sink == null)
+			throw new IllegalArgumentException("Sink is null!");
+		if (overflow == null)
+			throw new IllegalArgumentException("Overflow policy is null!");
+		if (capacity < 1 || batchSize < 1 || flushIntervalMillis < 1)
+			throw new IllegalArgumentException("Capacity, batch size and flush interval must be positive!");
+
+		this.queue = new ArrayBlockingQueue<>(capacity);
+		this.sink = sink;
+		this.batchSize = batchSize;
+		this.flushIntervalMillis = flushIntervalMillis;
+		this.overflow = overflow;
+		this.writer = new Thread(this::writeLoop, "audit-writer");
+		this.writer.setDaemon(true); //close() flushes, the writer must not keep the JVM alive
+		this.writer.start();
+	}
+
+	/**
+	 * Enqueues a statement, never blocks unless the overflow policy is BLOCK
+	 * @return false if the statement was dropped
+	 */
+	public boolean submit(String statement) {
+		if (statement == null)
+			throw new IllegalArgumentException("Statement is null!");
+		if (closed) {
+			dropped.incrementAndGet();
+			return false;
+		}
+
+		submitted.incrementAndGet();
+		if (overflow == Overflow.BLOCK) {
+			try {
+				queue.put(statement);
+				return true;
+			} catch (InterruptedException ex) {
+				Thread.currentThread().interrupt();
+			}
+		} else if (queue.offer(statement)) {
+			return true;
+		}
+		dropped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Stops taking statements and waits until the queued ones are written. The writer sees the
+	 * flag within a flush interval, it isn't interrupted: it may be in the middle of a batch
+	 * @return true if everything was handed to the sink within the timeout
+	 */
+	public boolean close(long timeoutMillis) {
+		closed = true;
+		try {
+			writer.join(timeoutMillis);
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		}
+		return !writer.isAlive();
+	}
+
+	/**
+	 * @return a one line summary of the queue
+	 */
+	public String metrics() {
+		return "submitted=" + submitted.get()
+				+ " written=" + written.get()
+				+ " failed=" + failed.get()
+				+ " dropped=" + dropped.get()
+				+ " batches=" + batches.get()
+				+ " queued=" + queue.size()
+				+ " overflow=" + overflow;
+	}
+
+	private void writeLoop() {
+		List<String> batch = new ArrayList<>(batchSize);
+		while (!closed || !queue.isEmpty()) {
+			try {
+				fillBatch(batch);
+			} catch (InterruptedException ex) {
+				//nobody interrupts the writer, close() only sets the flag; write what we have
+			}
+			if (closed) {
+				queue.drainTo(batch, batchSize - batch.size());
+			}
+			if (!batch.isEmpty()) {
+				writeBatch(batch);
+			}
+		}
+	}
+
+	//fillBatch - waits for a first statement, then up to the flush interval for the batch to fill
+	private void fillBatch(List<String> batch) throws InterruptedException {
+		String first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+		if (first == null)
+			return;
+		batch.add(first);
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+		while (batch.size() < batchSize) {
+			queue.drainTo(batch, batchSize - batch.size());
+			long left = deadline - System.nanoTime();
+			if (batch.size() >= batchSize || left <= 0)
+				return;
+			String next = queue.poll(left, TimeUnit.NANOSECONDS);
+			if (next == null)
+				return;
+			batch.add(next);
+		}
+	}
+
+	private void writeBatch(List<String> batch) {
+		int batchFailed;
+		try {
+			batchFailed = Math.min(batch.size(), Math.max(0, sink.write(batch)));
+		} catch (RuntimeException ex) {
+			ex.printStackTrace(); //the writer must survive a failing batch
+			batchFailed = batch.size();
+		}
+		written.addAndGet(batch.size() - batchFailed);
+		failed.addAndGet(batchFailed);
+		batches.incrementAndGet();
+		batch.clear();
+	}
+}
@@ -1,243 +1,189 @@
 package bgu.spl.net.impl.data;
 
-import java.io.BufferedReader;
-import java.io.InputStreamReader;
-import java.io.PrintWriter;
-import java.net.Socket;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 public class Database {
-	private final ConcurrentHashMap<String, User> userMap;
+	private final UserCache users;
 	private final ConcurrentHashMap<Integer, User> connectionsIdMap;
-	private final String sqlHost;
-	private final int sqlPort;
+	private final Persistence persistence;
+	private final ReportAggregates aggregates;
+	private final RecentSet recentUploads;
+	private final LongAdder uploadsTracked = new LongAdder();
+	private final LongAdder uploadsDeduplicated = new LongAdder();
 
 	private Database() {
-		userMap = new ConcurrentHashMap<>();
+		users = new UserCache(Integer.getInteger("stomp.userCacheSize", 100000));
 		connectionsIdMap = new ConcurrentHashMap<>();
-		// SQL server connection details
-		this.sqlHost = "127.0.0.1";
-		this.sqlPort = 7778;
+		persistence = createPersistence(System.getProperty("stomp.persistence", "sql"));
+		aggregates = new ReportAggregates();
+		recentUploads = new RecentSet(Integer.getInteger("stomp.uploadDedupSize", 4096),
+			Long.getLong("stomp.uploadDedupWindowMillis", 60000L));
+		persistence.load(aggregates);
 	}
 
 	public static Database getInstance() {
 		return Instance.instance;
 	}
 
-	/**
-	 * Execute SQL query and return result
-	 * @param sql SQL query string
-	 * @return Result string from SQL server
-	 */
-	private String executeSQL(String sql) {
-		try (Socket socket = new Socket(sqlHost, sqlPort);
-			 PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
-			 BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()))) {
-			
-			// Send SQL with null terminator
-			out.print(sql + '\0');
-			out.flush();
-			
-			// Read response until null terminator
-			StringBuilder response = new StringBuilder();
-			int ch;
-			while ((ch = in.read()) != -1 && ch != '\0') {
-				response.append((char) ch);
+	private static Persistence createPersistence(String kind) {
+		if (kind.equals("sql")) {
+			// SQL server connection details
+			return new SqlPersistence("127.0.0.1", 7778);
+		}
+		if (kind.equals("journal")) {
+			try {
+				return new JournalPersistence(Paths.get(System.getProperty("stomp.journalDir", "journal")),
+					Integer.getInteger("stomp.journalSegmentBytes", 64 << 20));
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
 			}
-			
-			return response.toString();
-			
-		} catch (Exception e) {
-			System.err.println("SQL Error: " + e.getMessage());
-			return "ERROR:" + e.getMessage();
 		}
+		throw new IllegalArgumentException("Unknown persistence " + kind + "!");
 	}
 
 	/**
-	 * Escape SQL special characters to prevent SQL injection
+	 * Make everything recorded durable, called on shutdown before the report
+	 * @param timeoutMillis how long to wait for pending records
 	 */
-	private String escapeSql(String str) {
-		if (str == null) return "";
-		return str.replace("'", "''");
-	}
-
-	public void addUser(User user) {
-		userMap.putIfAbsent(user.name, user);
-		connectionsIdMap.putIfAbsent(user.getConnectionId(), user);
+	public void flush(long timeoutMillis) {
+		persistence.close(timeoutMillis);
 	}
 
 	public LoginStatus login(int connectionId, String username, String password) {
 		if (connectionsIdMap.containsKey(connectionId)) {
 			return LoginStatus.CLIENT_ALREADY_CONNECTED;
 		}
-		if (addNewUserCase(connectionId, username, password)) {
-			// Log new user registration in SQL
-			String sql = String.format(
-				"INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', datetime('now'))",
-				escapeSql(username), escapeSql(password)
-			);
-			executeSQL(sql);
-			
-			// Log login
-			logLogin(username);
-			return LoginStatus.ADDED_NEW_USER;
-		} else {
-			LoginStatus status = userExistsCase(connectionId, username, password);
+		while (true) {
+			User user = users.get(username);
+			LoginStatus status;
+			if (user == null) {
+				try {
+					status = loadUserCase(connectionId, username, password);
+				} catch (IOException e) {
+					System.err.println("User lookup or registration failed: " + e.getMessage());
+					return LoginStatus.USERS_UNAVAILABLE;
+				}
+				if (status != null) {
+					return status;
+				}
+				continue; // cached meanwhile by another login, log in on that one
+			}
+			status = userExistsCase(user, connectionId, password);
 			if (status == LoginStatus.LOGGED_IN_SUCCESSFULLY) {
-				// Log successful login in SQL
-				logLogin(username);
+				persistence.userLoggedIn(username);
+				aggregates.userLoggedIn(username, System.currentTimeMillis());
+			}
+			if (status != null) {
+				return status;
 			}
-			return status;
+			// evicted meanwhile, look it up again
 		}
 	}
 
-	private void logLogin(String username) {
-		String sql = String.format(
-			"INSERT INTO login_history (username, login_time) VALUES ('%s', datetime('now'))",
-			escapeSql(username)
-		);
-		executeSQL(sql);
-	}
+	/**
+	 * A user that isn't cached: registers it if unknown, else loads it.
+	 * The user is logged in before it is cached, so it is pinned from the start
+	 * @return null if another login cached the user first
+	 */
+	private LoginStatus loadUserCase(int connectionId, String username, String password) throws IOException {
+		String storedPassword = persistence.findPassword(username);
+		if (storedPassword != null && !storedPassword.equals(password)) {
+			return LoginStatus.WRONG_PASSWORD;
+		}
+		User user = new User(connectionId, username, password);
+		user.tryLogin(); //not shared yet, can't fail
+		if (users.putIfAbsent(user) != user)
+			return null;
+		connectionsIdMap.put(connectionId, user);
 
-	private LoginStatus userExistsCase(int connectionId, String username, String password) {
-		User user = userMap.get(username);
-		synchronized (user) {
-			if (user.isLoggedIn()) {
-				return LoginStatus.ALREADY_LOGGED_IN;
-			} else if (!user.password.equals(password)) {
-				return LoginStatus.WRONG_PASSWORD;
-			} else {
-				user.login();
-				user.setConnectionId(connectionId);
-				connectionsIdMap.put(connectionId, user);
-				return LoginStatus.LOGGED_IN_SUCCESSFULLY;
+		long now = System.currentTimeMillis();
+		if (storedPassword == null) {
+			try {
+				persistence.userRegistered(username, password);
+			} catch (IOException e) {
+				// Not known to be stored, so not registered: a later CONNECT looks the user up again
+				connectionsIdMap.remove(connectionId);
+				users.remove(user);
+				throw e;
 			}
+			aggregates.userRegistered();
+			persistence.userLoggedIn(username);
+			aggregates.userLoggedIn(username, now);
+			return LoginStatus.ADDED_NEW_USER;
 		}
+		persistence.userLoggedIn(username);
+		aggregates.userLoggedIn(username, now);
+		return LoginStatus.LOGGED_IN_SUCCESSFULLY;
 	}
 
-	private boolean addNewUserCase(int connectionId, String username, String password) {
-		if (!userMap.containsKey(username)) {
-			synchronized (userMap) {
-				if (!userMap.containsKey(username)) {
-					User user = new User(connectionId, username, password);
-					user.login();
-					addUser(user);
-					return true;
-				}
-			}
+	//userExistsCase - null if the user was evicted before we could log it in
+	private LoginStatus userExistsCase(User user, int connectionId, String password) {
+		if (!user.password.equals(password)) {
+			return user.isEvicted() ? null : LoginStatus.WRONG_PASSWORD;
 		}
-		return false;
+		if (user.tryLogin()) {
+			user.setConnectionId(connectionId);
+			connectionsIdMap.put(connectionId, user);
+			return LoginStatus.LOGGED_IN_SUCCESSFULLY;
+		}
+		return user.isEvicted() ? null : LoginStatus.ALREADY_LOGGED_IN;
 	}
 
 	public void logout(int connectionsId) {
-		User user = connectionsIdMap.get(connectionsId);
+		User user = connectionsIdMap.remove(connectionsId); // only one logout of a connection gets the user
 		if (user != null) {
-			// Log logout in SQL
-			String sql = String.format(
-				"UPDATE login_history SET logout_time=datetime('now') " +
-				"WHERE username='%s' AND logout_time IS NULL " +
-				"ORDER BY login_time DESC LIMIT 1",
-				escapeSql(user.name)
-			);
-			executeSQL(sql);
+			persistence.userLoggedOut(user.name);
+			aggregates.userLoggedOut(user.name);
 			
-			user.logout();
-			connectionsIdMap.remove(connectionsId);
+			user.logout(); // the cache may evict it from here on
 		}
 	}
 
 	/**
-	 * Track file upload in SQL database
+	 * Track file upload, once per file: a report sends one SEND per event of the same file,
+	 * repeats of a (user, file, channel) seen within the dedup window are skipped
 	 * @param username User who uploaded the file
 	 * @param filename Name of the file
 	 * @param gameChannel Game channel the file was reported to
 	 */
 	public void trackFileUpload(String username, String filename, String gameChannel) {
-		String sql = String.format(
-			"INSERT INTO file_tracking (username, filename, upload_time, game_channel) " +
-			"VALUES ('%s', '%s', datetime('now'), '%s')",
-			escapeSql(username), escapeSql(filename), escapeSql(gameChannel)
-		);
-		executeSQL(sql);
+		if (!recentUploads.add(username + '\0' + filename + '\0' + gameChannel)) {
+			uploadsDeduplicated.increment();
+			return;
+		}
+		persistence.fileUploaded(username, filename, gameChannel);
+		aggregates.fileUploaded(gameChannel);
+		uploadsTracked.increment();
+	}
+
+	/**
+	 * Print the upload deduplication and persistence backend's metrics, for sizing them
+	 */
+	public void printMetrics() {
+		System.out.println("FILE UPLOADS: tracked=" + uploadsTracked.sum()
+			+ " deduplicated=" + uploadsDeduplicated.sum()
+			+ " recentSetSize=" + recentUploads.capacity());
+		System.out.println(persistence.metrics());
 	}
 
 	/**
-	 * Generate and print server report using SQL queries
+	 * Print the server report: the totals and sessions from the aggregates, the per user totals
+	 * counted by the persistence backend, and every record if -Dstomp.reportDetail=true
 	 */
 	public void printReport() {
-		System.out.println("================================================================================");
-		System.out.println("SERVER REPORT - Generated at: " + java.time.LocalDateTime.now());
-		System.out.println("================================================================================");
-		
-		// List all users
-		System.out.println("\n1. REGISTERED USERS:");
-		System.out.println("--------------------------------------------------------------------------------");
-		String usersSQL = "SELECT username, registration_date FROM users ORDER BY registration_date";
-		String usersResult = executeSQL(usersSQL);
-		if (usersResult.startsWith("SUCCESS")) {
-			String[] parts = usersResult.split("\\|");
-			if (parts.length > 1) {
-				for (int i = 1; i < parts.length; i++) {
-					System.out.println("   " + parts[i]);
-				}
-			} else {
-				System.out.println("   No users registered");
-			}
-		}
-		
-		// Login history for each user
-		System.out.println("\n2. LOGIN HISTORY:");
-		System.out.println("--------------------------------------------------------------------------------");
-		String loginSQL = "SELECT username, login_time, logout_time FROM login_history ORDER BY username, login_time DESC";
-		String loginResult = executeSQL(loginSQL);
-		if (loginResult.startsWith("SUCCESS")) {
-			String[] parts = loginResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 3) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      Login:  " + fields[1]);
-						System.out.println("      Logout: " + (fields[2].equals("None") ? "Still logged in" : fields[2]));
-					}
-				}
-			} else {
-				System.out.println("   No login history");
-			}
-		}
-		
-		// File uploads for each user
-		System.out.println("\n3. FILE UPLOADS:");
-		System.out.println("--------------------------------------------------------------------------------");
-		String filesSQL = "SELECT username, filename, upload_time, game_channel FROM file_tracking ORDER BY username, upload_time DESC";
-		String filesResult = executeSQL(filesSQL);
-		if (filesResult.startsWith("SUCCESS")) {
-			String[] parts = filesResult.split("\\|");
-			if (parts.length > 1) {
-				String currentUser = "";
-				for (int i = 1; i < parts.length; i++) {
-					String[] fields = parts[i].replace("(", "").replace(")", "").replace("'", "").split(", ");
-					if (fields.length >= 4) {
-						if (!fields[0].equals(currentUser)) {
-							currentUser = fields[0];
-							System.out.println("\n   User: " + currentUser);
-						}
-						System.out.println("      File: " + fields[1]);
-						System.out.println("      Time: " + fields[2]);
-						System.out.println("      Game: " + fields[3]);
-						System.out.println();
-					}
-				}
-			} else {
-				System.out.println("   No files uploaded");
-			}
+		ReportPrinter report = new ReportPrinter();
+		report.begin("SERVER REPORT");
+		aggregates.print(report);
+		persistence.printUserTotals(report);
+		report.end();
+
+		if (Boolean.getBoolean("stomp.reportDetail")) {
+			persistence.printReport();
 		}
-		
-		System.out.println("================================================================================");
 	}
 
 	private static class Instance {
@@ -0,0 +1,333 @@
+package bgu.spl.net.impl.data;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of records in memory-mapped segment files of a fixed size.
+ * A record is [int length][int crc32][payload]. The payload is written before the crc and the
+ * length, so a record only counts once its length is set, and the zeroed rest of a segment marks
+ * its end. A full segment is forced to disk, sealed, and the journal rolls to a new one.
+ * Only the current segment stays mapped. Sealed segments are read with positional reads, and
+ * mapped only for the length of a replay, so address space doesn't grow with the journal.
+ * Opening a journal recovers it: the current segment is scanned and a torn or corrupt tail (a
+ * crash in the middle of an append) is zeroed, appends continue after the last good record.
+ * Sealed segments were forced before the roll and aren't scanned.
+ * Writes to the mapping survive a crash of the process. They survive a crash of the machine only
+ * once forced, which happens on roll and on close.
+ * A record's position is its segment's index in the high and its offset in the low 32 bits.
+ * Every segment is kept, there is no retention: the journal is the history the detailed report
+ * is built from, so its disk use grows with the events recorded.
+ */
+public class EventJournal {
+
+	public interface RecordVisitor {
+		/**
+		 * @param payload a read-only view of the record, valid only during the call
+		 */
+		void visit(long position, ByteBuffer payload);
+	}
+
+	private static final int HEADER_BYTES = 8;
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".journal";
+
+	private final Path directory;
+	private final int segmentBytes;
+	private final ReentrantLock lock = new ReentrantLock(); //a roll and force do file I/O, virtual threads wait unpinned
+	private final List<Path> segments = new ArrayList<>(); //guarded by lock, oldest first
+	private MappedByteBuffer current; //guarded by lock, the last segment
+	private final CRC32 crc = new CRC32(); //guarded by lock
+	private long appended = 0; //guarded by lock, records appended since the journal was opened
+	private int recoveredTails = 0; //guarded by lock
+
+	public EventJournal(Path directory, int segmentBytes) throws IOException {
+		if (directory == null)
+			throw new IllegalArgumentException("Directory is null!");
+		if (segmentBytes < 1024)
+			throw new IllegalArgumentException("Segments must be at least 1k!");
+
+		this.directory = directory;
+		this.segmentBytes = segmentBytes;
+		Files.createDirectories(directory);
+		recover();
+	}
+
+	/**
+	 * Appends one record, a memory copy unless the segment is full and the journal rolls
+	 * @return the record's position
+	 */
+	public long append(byte[] payload) {
+		lock.lock();
+		try {
+			if (payload == null)
+				throw new IllegalArgumentException("Payload is null!");
+			if (HEADER_BYTES + payload.length > segmentBytes)
+				throw new IllegalArgumentException("Record larger than a segment!");
+
+			try {
+				if (current.remaining() < HEADER_BYTES + payload.length) {
+					roll();
+				}
+				int start = current.position();
+				crc.reset();
+				crc.update(payload, 0, payload.length);
+				current.position(start + HEADER_BYTES);
+				current.put(payload);
+				current.putInt(start + 4, (int) crc.getValue());
+				current.putInt(start, payload.length); //last, this publishes the record
+				appended++;
+				return ((long) (segments.size() - 1) << 32) | start;
+			} catch (IOException ex) {
+				throw new UncheckedIOException(ex);
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Visits every record, oldest first
+	 */
+	public void forEach(RecordVisitor visitor) {
+		forEachFrom(0, visitor);
+	}
+
+	/**
+	 * Visits the records from a position on, oldest first. Appends wait for the replay
+	 * @param from a record's position, or end() of an earlier state of the journal
+	 */
+	public void forEachFrom(long from, RecordVisitor visitor) {
+		lock.lock();
+		try {
+			int offset = (int) from;
+			for (int segment = (int) (from >>> 32); segment < segments.size(); segment++) {
+				ByteBuffer buffer = segment == segments.size() - 1 ? current : mapSealed(segments.get(segment));
+				int length;
+				while (offset + HEADER_BYTES <= buffer.capacity() && (length = buffer.getInt(offset)) > 0) {
+					visitor.visit(((long) segment << 32) | offset, payload(buffer, offset, length));
+					offset += HEADER_BYTES + length;
+				}
+				offset = 0;
+			}
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the position the next record will be appended at, if the segment doesn't roll
+	 */
+	public long end() {
+		lock.lock();
+		try {
+			return ((long) (segments.size() - 1) << 32) | current.position();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if position is within the records of this journal, e.g. an end() it had before
+	 */
+	public boolean contains(long position) {
+		lock.lock();
+		try {
+			int segment = (int) (position >>> 32);
+			int offset = (int) position;
+			if (segment < 0 || segment >= segments.size() || offset < 0)
+				return false;
+			return segment == segments.size() - 1 ? offset <= current.position() : offset <= Files.size(segments.get(segment));
+		} catch (IOException ex) {
+			return false;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param position as returned by append or given to a RecordVisitor
+	 * @return a read-only view of the record
+	 */
+	public ByteBuffer read(long position) {
+		int segment = (int) (position >>> 32);
+		int offset = (int) position;
+		Path sealed;
+		lock.lock();
+		try {
+			if (segment < 0 || segment >= segments.size() || offset < 0)
+				throw new IllegalArgumentException("No record at " + position + "!");
+			if (segment == segments.size() - 1) {
+				if (offset + HEADER_BYTES > current.capacity())
+					throw new IllegalArgumentException("No record at " + position + "!");
+				int length = current.getInt(offset);
+				if (length <= 0 || length > current.capacity() - offset - HEADER_BYTES)
+					throw new IllegalArgumentException("No record at " + position + "!");
+				return payload(current, offset, length);
+			}
+			sealed = segments.get(segment);
+		} finally {
+			lock.unlock();
+		}
+
+		try (FileChannel channel = FileChannel.open(sealed, StandardOpenOption.READ)) { //sealed, so no lock needed
+			ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+			readFully(channel, header, offset);
+			int length = header.getInt(0);
+			if (length <= 0 || length > channel.size() - offset - HEADER_BYTES)
+				throw new IllegalArgumentException("No record at " + position + "!");
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			readFully(channel, payload, offset + HEADER_BYTES);
+			payload.flip();
+			return payload.asReadOnlyBuffer();
+		} catch (EOFException ex) {
+			throw new IllegalArgumentException("No record at " + position + "!");
+		} catch (IOException ex) {
+			throw new UncheckedIOException(ex);
+		}
+	}
+
+	/**
+	 * Forces the current segment to disk
+	 */
+	public void force() {
+		lock.lock();
+		try {
+			current.force();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public String metrics() {
+		lock.lock();
+		try {
+			return "segments=" + segments.size()
+					+ " appended=" + appended
+					+ " currentSegmentBytes=" + current.position()
+					+ " segmentBytes=" + segmentBytes
+					+ " recoveredTails=" + recoveredTails;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void recover() throws IOException {
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+			for (Path file : files) {
+				segments.add(file);
+			}
+		}
+		Collections.sort(segments); //zero padded numbers sort by name
+		if (segments.isEmpty()) {
+			roll();
+			return;
+		}
+
+		Path segment = last();
+		MappedByteBuffer buffer = map(segment);
+		int end = scan(buffer);
+		if (end < buffer.capacity() && !isZero(buffer, end)) { //torn or corrupt tail
+			for (int i = end; i < buffer.capacity(); i++) {
+				buffer.put(i, (byte) 0);
+			}
+			buffer.force();
+			recoveredTails++;
+			System.err.println("Journal: recovered " + segment.getFileName() + " at byte " + end);
+		}
+		buffer.position(end);
+		current = buffer;
+	}
+
+	//scan - checks the records, returns where the good ones end
+	private int scan(ByteBuffer buffer) {
+		int position = 0;
+		while (position + HEADER_BYTES <= buffer.capacity()) {
+			int length = buffer.getInt(position);
+			if (length <= 0 || length > buffer.capacity() - position - HEADER_BYTES)
+				break;
+
+			crc.reset();
+			for (int i = position + HEADER_BYTES; i < position + HEADER_BYTES + length; i++) {
+				crc.update(buffer.get(i));
+			}
+			if ((int) crc.getValue() != buffer.getInt(position + 4))
+				break;
+
+			position += HEADER_BYTES + length;
+		}
+		return position;
+	}
+
+	private static boolean isZero(ByteBuffer buffer, int from) {
+		for (int i = from; i < buffer.capacity(); i++) {
+			if (buffer.get(i) != 0)
+				return false;
+		}
+		return true;
+	}
+
+	private void roll() throws IOException {
+		if (current != null) {
+			current.force(); //sealed from here on, dropping the reference unmaps it
+		}
+		int next = segments.isEmpty() ? 1 : segmentNumber(last()) + 1;
+		Path segment = directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, next, SEGMENT_SUFFIX));
+		current = map(segment); //a new file reads as zeros
+		segments.add(segment);
+	}
+
+	private MappedByteBuffer map(Path segment) throws IOException {
+		try (FileChannel channel = FileChannel.open(segment,
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			// A segment written with another segment size keeps its own
+			long size = channel.size() > 0 ? channel.size() : segmentBytes;
+			return channel.map(FileChannel.MapMode.READ_WRITE, 0, size); //the mapping stays valid after the channel closes
+		}
+	}
+
+	//mapSealed - for one replay, unmapped once the caller drops it
+	private static MappedByteBuffer mapSealed(Path segment) throws IOException {
+		try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + buffer.position());
+			if (read == -1)
+				throw new EOFException();
+		}
+	}
+
+	private static ByteBuffer payload(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer payload = buffer.duplicate();
+		payload.limit(offset + HEADER_BYTES + length).position(offset + HEADER_BYTES);
+		return payload.slice().asReadOnlyBuffer();
+	}
+
+	private Path last() {
+		return segments.get(segments.size() - 1);
+	}
+
+	private static int segmentNumber(Path segment) {
+		String name = segment.getFileName().toString();
+		return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+	}
+}
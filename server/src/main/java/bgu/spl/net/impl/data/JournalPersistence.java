@@ -0,0 +1,456 @@
+package bgu.spl.net.impl.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Persistence in a local memory-mapped EventJournal, no SQL server needed.
+ * Every event is one record: [byte type][long timestampMillis] and its fields as
+ * [short length][UTF-8 bytes]. Recording is an in-process memory copy, so it is done on the
+ * calling thread. Users are looked up through an index of the registration records, and the
+ * report totals are counted as records are appended; the detailed report is built by replaying
+ * the journal.
+ * On close the index and the totals are written to a checkpoint file with the journal position
+ * they cover, so a restart replays only the records appended after it, once.
+ */
+public class JournalPersistence implements Persistence {
+
+	private static final byte USER_REGISTERED = 1;
+	private static final byte USER_LOGGED_IN = 2;
+	private static final byte USER_LOGGED_OUT = 3;
+	private static final byte FILE_UPLOADED = 4;
+
+	private static final String CHECKPOINT = "checkpoint";
+	private static final int CHECKPOINT_VERSION = 1;
+
+	private final EventJournal journal;
+	private final Path checkpoint;
+	private final RegistrationIndex registrations = new RegistrationIndex();
+	private final ReentrantLock recording = new ReentrantLock(); //an append and its counting, so a checkpoint sees both or neither
+	private long registered = 0; //guarded by recording, totals of the whole journal
+	private long logins = 0; //guarded by recording
+	private final HashMap<String, Long> uploads = new HashMap<>(); //guarded by recording, by game channel
+
+	public JournalPersistence(Path directory, int segmentBytes) throws IOException {
+		this.journal = new EventJournal(directory, segmentBytes);
+		this.checkpoint = directory.resolve(CHECKPOINT);
+		journal.forEachFrom(readCheckpoint(), this::count);
+	}
+
+	/**
+	 * Reads the password from the user's registration record, found through the index
+	 */
+	@Override
+	public String findPassword(String username) {
+		for (long position : registrations.candidates(username.hashCode())) {
+			ByteBuffer record = journal.read(position);
+			record.position(1 + 8);
+			if (readString(record).equals(username))
+				return readString(record);
+		}
+		return null;
+	}
+
+	@Override
+	public void userRegistered(String username, String password) {
+		append(USER_REGISTERED, username, password);
+	}
+
+	@Override
+	public void userLoggedIn(String username) {
+		append(USER_LOGGED_IN, username);
+	}
+
+	@Override
+	public void userLoggedOut(String username) {
+		append(USER_LOGGED_OUT, username);
+	}
+
+	@Override
+	public void fileUploaded(String username, String filename, String gameChannel) {
+		append(FILE_UPLOADED, username, filename, gameChannel);
+	}
+
+	/**
+	 * Forces the journal and writes the checkpoint, appends are synchronous so nothing is pending
+	 */
+	@Override
+	public void close(long timeoutMillis) {
+		recording.lock();
+		try {
+			journal.force();
+			writeCheckpoint();
+		} catch (IOException e) {
+			System.err.println("Journal: checkpoint not written, the next start replays more: " + e.getMessage());
+		} finally {
+			recording.unlock();
+		}
+	}
+
+	@Override
+	public String metrics() {
+		return "EVENT JOURNAL: " + journal.metrics();
+	}
+
+	@Override
+	public void load(ReportAggregates aggregates) {
+		recording.lock();
+		try {
+			aggregates.usersRecorded(registered);
+			aggregates.loginsRecorded(logins);
+			for (Map.Entry<String, Long> channel : uploads.entrySet()) {
+				aggregates.uploadsRecorded(channel.getKey(), channel.getValue());
+			}
+		} finally {
+			recording.unlock();
+		}
+	}
+
+	/**
+	 * Print the per user totals, counted in one replay of the journal
+	 */
+	@Override
+	public void printUserTotals(ReportPrinter report) {
+		TreeMap<String, Long> logins = new TreeMap<>();
+		TreeMap<String, TreeMap<String, Long>> uploads = new TreeMap<>(); //by user, then game channel
+
+		journal.forEach((position, record) -> {
+			byte type = record.get();
+			record.getLong(); //time
+			if (type == USER_LOGGED_IN) {
+				logins.merge(readString(record), 1L, Long::sum);
+			} else if (type == FILE_UPLOADED) {
+				String username = readString(record);
+				readString(record); //filename
+				uploads.computeIfAbsent(username, name -> new TreeMap<>()).merge(readString(record), 1L, Long::sum);
+			}
+		});
+
+		report.section("3. LOGINS PER USER:");
+		for (Map.Entry<String, Long> user : logins.entrySet()) {
+			report.loginCount(user.getKey(), user.getValue());
+		}
+		if (logins.isEmpty()) {
+			report.empty("No login history");
+		}
+
+		report.section("4. FILE UPLOADS PER USER:");
+		for (Map.Entry<String, TreeMap<String, Long>> user : uploads.entrySet()) {
+			for (Map.Entry<String, Long> channel : user.getValue().entrySet()) {
+				report.uploadSummary(user.getKey(), channel.getKey(), channel.getValue());
+			}
+		}
+		if (uploads.isEmpty()) {
+			report.empty("No files uploaded");
+		}
+	}
+
+	/**
+	 * Generate and print the detailed server report by replaying the journal
+	 */
+	@Override
+	public void printReport() {
+		List<String[]> users = new ArrayList<>(); //{username, registration time}, in registration order
+		List<Login> logins = new ArrayList<>();
+		Map<String, ArrayDeque<Login>> openLogins = new HashMap<>();
+		List<String[]> uploads = new ArrayList<>(); //{username, filename, time, game}
+		List<Long> uploadTimes = new ArrayList<>();
+
+		journal.forEach((position, record) -> {
+			byte type = record.get();
+			long time = record.getLong();
+			String username = readString(record);
+			switch (type) {
+				case USER_REGISTERED:
+					users.add(new String[] { username, ReportPrinter.formatTime(time) });
+					break;
+				case USER_LOGGED_IN:
+					Login login = new Login(username, time);
+					logins.add(login);
+					openLogins.computeIfAbsent(username, name -> new ArrayDeque<>()).push(login);
+					break;
+				case USER_LOGGED_OUT:
+					ArrayDeque<Login> open = openLogins.get(username);
+					if (open != null && !open.isEmpty()) {
+						open.pop().logoutTime = time;
+					}
+					break;
+				case FILE_UPLOADED:
+					String filename = readString(record);
+					uploads.add(new String[] { username, filename, ReportPrinter.formatTime(time), readString(record) });
+					uploadTimes.add(time);
+					break;
+				default:
+					System.err.println("Journal: unknown record type " + type);
+			}
+		});
+
+		ReportPrinter report = new ReportPrinter();
+		report.begin("SERVER REPORT DETAIL");
+
+		report.section("1. REGISTERED USERS:");
+		for (String[] user : users) {
+			report.registeredUser(user[0], user[1]);
+		}
+		if (users.isEmpty()) {
+			report.empty("No users registered");
+		}
+
+		// Grouped by user, newest first - the order the SQL report asks for
+		report.section("2. LOGIN HISTORY:");
+		logins.sort(Comparator.comparing((Login login) -> login.username)
+			.thenComparing(Comparator.comparingLong((Login login) -> login.loginTime).reversed()));
+		for (Login login : logins) {
+			report.login(login.username, ReportPrinter.formatTime(login.loginTime),
+				login.logoutTime == Login.STILL_LOGGED_IN ? null : ReportPrinter.formatTime(login.logoutTime));
+		}
+		if (logins.isEmpty()) {
+			report.empty("No login history");
+		}
+
+		report.section("3. FILE UPLOADS:");
+		List<Integer> order = new ArrayList<>(uploads.size());
+		for (int i = 0; i < uploads.size(); i++) {
+			order.add(i);
+		}
+		order.sort(Comparator.comparing((Integer i) -> uploads.get(i)[0])
+			.thenComparing(Comparator.comparingLong((Integer i) -> uploadTimes.get(i)).reversed()));
+		for (int i : order) {
+			String[] upload = uploads.get(i);
+			report.upload(upload[0], upload[1], upload[2], upload[3]);
+		}
+		if (uploads.isEmpty()) {
+			report.empty("No files uploaded");
+		}
+
+		report.end();
+	}
+
+	private long append(byte type, String... fields) {
+		byte[][] encoded = new byte[fields.length][];
+		int length = 1 + 8;
+		for (int i = 0; i < fields.length; i++) {
+			encoded[i] = (fields[i] == null ? "" : fields[i]).getBytes(StandardCharsets.UTF_8);
+			if (encoded[i].length > 0xFFFF)
+				throw new IllegalArgumentException("Field longer than 64k!");
+			length += 2 + encoded[i].length;
+		}
+
+		ByteBuffer record = ByteBuffer.allocate(length);
+		record.put(type).putLong(System.currentTimeMillis());
+		for (byte[] field : encoded) {
+			record.putShort((short) field.length).put(field);
+		}
+		recording.lock();
+		try {
+			long position = journal.append(record.array());
+			count(position, record.flip());
+			return position;
+		} finally {
+			recording.unlock();
+		}
+	}
+
+	//count - adds a record to the index and the totals, on replay and on append
+	private void count(long position, ByteBuffer record) {
+		byte type = record.get();
+		record.getLong(); //time
+		if (type == USER_REGISTERED) {
+			registrations.add(readString(record).hashCode(), position);
+			registered++;
+		} else if (type == USER_LOGGED_IN) {
+			logins++;
+		} else if (type == FILE_UPLOADED) {
+			skipString(record); //username
+			skipString(record); //filename
+			uploads.merge(readString(record), 1L, Long::sum);
+		}
+	}
+
+	//readCheckpoint - seeds the index and the totals, returns the position the replay starts at
+	private long readCheckpoint() {
+		if (!Files.exists(checkpoint))
+			return 0;
+		try {
+			byte[] bytes = Files.readAllBytes(checkpoint);
+			if (bytes.length < 8)
+				throw new IOException("truncated");
+			CRC32 crc = new CRC32();
+			crc.update(bytes, 0, bytes.length - 8);
+			if (crc.getValue() != ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong())
+				throw new IOException("bad checksum");
+
+			DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes, 0, bytes.length - 8));
+			if (in.readInt() != CHECKPOINT_VERSION)
+				throw new IOException("unknown version");
+			long end = in.readLong();
+			if (!journal.contains(end))
+				throw new IOException("it is ahead of the journal");
+			long checkpointRegistered = in.readLong();
+			long checkpointLogins = in.readLong();
+			HashMap<String, Long> checkpointUploads = new HashMap<>();
+			for (int channels = in.readInt(); channels > 0; channels--) {
+				checkpointUploads.put(in.readUTF(), in.readLong());
+			}
+			registrations.readFrom(in);
+
+			registered = checkpointRegistered;
+			logins = checkpointLogins;
+			uploads.putAll(checkpointUploads);
+			return end;
+		} catch (IOException | RuntimeException e) {
+			System.err.println("Journal: checkpoint ignored (" + e.getMessage() + "), replaying the whole journal");
+			registrations.clear();
+			return 0;
+		}
+	}
+
+	//writeCheckpoint - replaces the checkpoint atomically, a crash leaves the old one or the new one
+	private void writeCheckpoint() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		out.writeInt(CHECKPOINT_VERSION);
+		out.writeLong(journal.end());
+		out.writeLong(registered);
+		out.writeLong(logins);
+		out.writeInt(uploads.size());
+		for (Map.Entry<String, Long> channel : uploads.entrySet()) {
+			out.writeUTF(channel.getKey());
+			out.writeLong(channel.getValue());
+		}
+		registrations.writeTo(out);
+		CRC32 crc = new CRC32();
+		crc.update(bytes.toByteArray());
+		out.writeLong(crc.getValue());
+
+		Path written = checkpoint.resolveSibling(CHECKPOINT + ".tmp");
+		try (FileChannel channel = FileChannel.open(written,
+				StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		Files.move(written, checkpoint, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private static String readString(ByteBuffer record) {
+		byte[] bytes = new byte[record.getShort() & 0xFFFF];
+		record.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void skipString(ByteBuffer record) {
+		int length = record.getShort() & 0xFFFF;
+		record.position(record.position() + length);
+	}
+
+	/**
+	 * Positions of registration records by the hash of the username, in two primitive arrays
+	 * with open addressing, at most half full - 12 bytes of heap per slot rather than a User object per user
+	 */
+	private static final class RegistrationIndex {
+		private int[] hashes = new int[1024];
+		private long[] positions = new long[1024]; //0 is a free slot, so stored shifted by one
+		private int size = 0;
+
+		synchronized void add(int hash, long position) {
+			if (2 * (size + 1) > positions.length) {
+				grow();
+			}
+			insert(hash, position + 1);
+			size++;
+		}
+
+		synchronized List<Long> candidates(int hash) {
+			List<Long> found = new ArrayList<>(1);
+			for (int slot = slot(hash, positions.length); positions[slot] != 0; slot = (slot + 1) & (positions.length - 1)) {
+				if (hashes[slot] == hash) {
+					found.add(positions[slot] - 1);
+				}
+			}
+			return found;
+		}
+
+		synchronized void clear() {
+			hashes = new int[1024];
+			positions = new long[1024];
+			size = 0;
+		}
+
+		synchronized void writeTo(DataOutputStream out) throws IOException {
+			out.writeInt(size);
+			for (int slot = 0; slot < positions.length; slot++) {
+				if (positions[slot] != 0) {
+					out.writeInt(hashes[slot]);
+					out.writeLong(positions[slot] - 1);
+				}
+			}
+		}
+
+		void readFrom(DataInputStream in) throws IOException {
+			for (int entries = in.readInt(); entries > 0; entries--) {
+				add(in.readInt(), in.readLong());
+			}
+		}
+
+		private void insert(int hash, long storedPosition) {
+			int slot = slot(hash, positions.length);
+			while (positions[slot] != 0) {
+				slot = (slot + 1) & (positions.length - 1);
+			}
+			hashes[slot] = hash;
+			positions[slot] = storedPosition;
+		}
+
+		private void grow() {
+			int[] oldHashes = hashes;
+			long[] oldPositions = positions;
+			hashes = new int[oldHashes.length * 2];
+			positions = new long[oldPositions.length * 2];
+			for (int i = 0; i < oldPositions.length; i++) {
+				if (oldPositions[i] != 0) {
+					insert(oldHashes[i], oldPositions[i]);
+				}
+			}
+		}
+
+		private static int slot(int hash, int length) {
+			int mixed = hash * 0x9E3779B9;
+			return (mixed ^ (mixed >>> 16)) & (length - 1);
+		}
+	}
+
+	private static final class Login {
+		private static final long STILL_LOGGED_IN = -1;
+
+		private final String username;
+		private final long loginTime;
+		private long logoutTime = STILL_LOGGED_IN;
+
+		Login(String username, long loginTime) {
+			this.username = username;
+			this.loginTime = loginTime;
+		}
+	}
+}
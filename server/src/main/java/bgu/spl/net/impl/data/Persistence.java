@@ -0,0 +1,64 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+
+/**
+ * Where Database records user registrations, login history and file uploads, and what the
+ * server report is generated from. Recording must not block the STOMP path on I/O, except for
+ * a registration: it must not be lost, so it is written before the CONNECT is answered.
+ * Chosen with the stomp.persistence system property: sql (the default) or journal.
+ */
+public interface Persistence {
+
+	/**
+	 * Looks up a registered user, for users that aren't cached
+	 * @return the user's password, or null if no such user was registered
+	 * @throws IOException if the users can't be read right now
+	 */
+	String findPassword(String username) throws IOException;
+
+	/**
+	 * Records a new user before its CONNECT is answered. Once the user leaves the cache the
+	 * password is only found here, so a registration is never queued or dropped
+	 * @throws IOException if the registration can't be confirmed written, the CONNECT is refused
+	 */
+	void userRegistered(String username, String password) throws IOException;
+
+	void userLoggedIn(String username);
+
+	/**
+	 * Closes the user's most recent open login
+	 */
+	void userLoggedOut(String username);
+
+	void fileUploaded(String username, String filename, String gameChannel);
+
+	/**
+	 * Makes everything recorded so far durable and stops taking records, called on shutdown
+	 * @param timeoutMillis how long to wait for pending records
+	 */
+	void close(long timeoutMillis);
+
+	/**
+	 * Adds the totals recorded before this run to the report aggregates, called once on startup.
+	 * Only totals are loaded, nothing per user
+	 */
+	void load(ReportAggregates aggregates);
+
+	/**
+	 * Prints the per user part of the report summary, sections 3 and 4: logins per user and
+	 * uploads per user and game channel. Counted when called, so no per user totals are kept
+	 */
+	void printUserTotals(ReportPrinter report);
+
+	/**
+	 * Prints the full detail of the server report: every registration, login and file upload.
+	 * Reads the records a page at a time, it may be slow after a long run
+	 */
+	void printReport();
+
+	/**
+	 * @return a summary of the backend's internals, for sizing it
+	 */
+	String metrics();
+}
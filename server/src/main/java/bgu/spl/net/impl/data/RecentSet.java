@@ -0,0 +1,85 @@
+package bgu.spl.net.impl.data;
+
+import java.util.function.LongSupplier;
+
+/**
+ * A bounded set of recently seen keys that forgets a key once it wasn't seen for a window.
+ * Set-associative: a key's hash picks a set of WAYS slots and the key may sit in any of them, so
+ * keys whose hashes collide don't evict each other until more than WAYS of them are active.
+ * A full set evicts its least recently seen key. Every hit restarts the key's window.
+ * A miss may thus report a key seen before as new, it never reports a new key as seen.
+ */
+public class RecentSet {
+
+	private static final int WAYS = 8;
+	private static final int LOCK_STRIPES = 64;
+
+	private final String[] keys; //WAYS slots per set, null if free
+	private final long[] seenAt; //millis a slot's key was last seen
+	private final Object[] locks = new Object[LOCK_STRIPES]; //a set is guarded by locks[set % LOCK_STRIPES]
+	private final int setMask;
+	private final long windowMillis;
+	private final LongSupplier clock;
+
+	/**
+	 * @param capacity rounded up to a power of two, at least WAYS
+	 * @param windowMillis how long after it was last seen a key counts as new again
+	 */
+	public RecentSet(int capacity, long windowMillis) {
+		this(capacity, windowMillis, () -> System.nanoTime() / 1_000_000);
+	}
+
+	/*package*/ RecentSet(int capacity, long windowMillis, LongSupplier clock) {
+		if (capacity < 1 || capacity > 1 << 30)
+			throw new IllegalArgumentException("Capacity must be between 1 and 2^30!");
+		if (windowMillis < 1)
+			throw new IllegalArgumentException("Window must be positive!");
+		if (clock == null)
+			throw new IllegalArgumentException("Clock is null!");
+
+		int size = Math.max(WAYS, capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1);
+		this.keys = new String[size];
+		this.seenAt = new long[size];
+		this.setMask = size / WAYS - 1;
+		this.windowMillis = windowMillis;
+		this.clock = clock;
+		for (int i = 0; i < locks.length; i++) {
+			locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * @return true if the key wasn't seen within the window, it is remembered from now on
+	 */
+	public boolean add(String key) {
+		if (key == null)
+			throw new IllegalArgumentException("Key is null!");
+
+		int hash = key.hashCode() * 0x9E3779B9;
+		int set = (hash ^ (hash >>> 16)) & setMask;
+		int first = set * WAYS;
+		long now = clock.getAsLong();
+		synchronized (locks[set & (LOCK_STRIPES - 1)]) {
+			int victim = first;
+			for (int slot = first; slot < first + WAYS; slot++) {
+				if (key.equals(keys[slot])) {
+					boolean expired = now - seenAt[slot] > windowMillis;
+					seenAt[slot] = now;
+					return expired;
+				}
+				if (keys[slot] == null) {
+					victim = slot;
+				} else if (keys[victim] != null && seenAt[slot] < seenAt[victim]) {
+					victim = slot; //least recently seen so far, a free slot wins over any
+				}
+			}
+			keys[victim] = key;
+			seenAt[victim] = now;
+			return true;
+		}
+	}
+
+	public int capacity() {
+		return keys.length;
+	}
+}
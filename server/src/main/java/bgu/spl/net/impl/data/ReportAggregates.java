@@ -0,0 +1,81 @@
+package bgu.spl.net.impl.data;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Report summary kept up to date as events happen: the number of registered users, logins and
+ * uploads per game channel, and the current session of every logged-in user.
+ * Only logged-in users have an entry, so its size grows with active users and game channels, not
+ * with registered accounts or history. Seeded on startup with the totals the persistence backend
+ * recorded before; per user totals are counted by the backend when the report is printed.
+ */
+public class ReportAggregates {
+
+	private final LongAdder registered = new LongAdder();
+	private final LongAdder logins = new LongAdder();
+	private final ConcurrentHashMap<String, LongAdder> uploads = new ConcurrentHashMap<>(); //by game channel
+	private final ConcurrentHashMap<String, Long> sessions = new ConcurrentHashMap<>(); //start time by logged in user
+
+	public void userRegistered() {
+		registered.increment();
+	}
+
+	public void userLoggedIn(String username, long timeMillis) {
+		logins.increment();
+		sessions.put(username, timeMillis);
+	}
+
+	public void userLoggedOut(String username) {
+		sessions.remove(username);
+	}
+
+	public void fileUploaded(String gameChannel) {
+		uploadsRecorded(gameChannel, 1);
+	}
+
+	/**
+	 * Adds registrations of earlier runs
+	 */
+	public void usersRecorded(long count) {
+		registered.add(count);
+	}
+
+	/**
+	 * Adds logins of earlier runs, they don't open a session
+	 */
+	public void loginsRecorded(long count) {
+		logins.add(count);
+	}
+
+	public void uploadsRecorded(String gameChannel, long count) {
+		uploads.computeIfAbsent(gameChannel == null ? "None" : gameChannel, channel -> new LongAdder()).add(count);
+	}
+
+	/**
+	 * Prints the totals and the current sessions, users by name
+	 */
+	public void print(ReportPrinter report) {
+		report.section("1. TOTALS:");
+		report.total("Registered users", registered.sum());
+		report.total("Logins", logins.sum());
+		long allUploads = 0;
+		for (Map.Entry<String, LongAdder> channel : new TreeMap<>(uploads).entrySet()) {
+			long count = channel.getValue().sum();
+			report.total("Uploads to " + channel.getKey(), count);
+			allUploads += count;
+		}
+		report.total("Uploads", allUploads);
+
+		report.section("2. CURRENT SESSIONS:");
+		TreeMap<String, Long> active = new TreeMap<>(sessions);
+		for (Map.Entry<String, Long> session : active.entrySet()) {
+			report.session(session.getKey(), ReportPrinter.formatTime(session.getValue()));
+		}
+		if (active.isEmpty()) {
+			report.empty("No users logged in");
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package bgu.spl.net.impl.data;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+/**
+ * The layout of the server report, shared by the persistence backends
+ */
+public class ReportPrinter {
+
+	private static final String LINE = "================================================================================";
+	private static final String THIN_LINE = "--------------------------------------------------------------------------------";
+
+	// Same format and zone as SQLite's datetime('now'), so all backends read alike
+	private static final DateTimeFormatter TIME_FORMAT =
+		DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneOffset.UTC);
+
+	private String currentUser = null;
+
+	public static String formatTime(long timeMillis) {
+		return TIME_FORMAT.format(Instant.ofEpochMilli(timeMillis));
+	}
+
+	/**
+	 * @return the time in millis, or 0 if it isn't in the report format
+	 */
+	public static long parseTime(String time) {
+		try {
+			return LocalDateTime.parse(time, TIME_FORMAT).toInstant(ZoneOffset.UTC).toEpochMilli();
+		} catch (DateTimeParseException ex) {
+			return 0;
+		}
+	}
+
+	public void begin(String title) {
+		System.out.println(LINE);
+		System.out.println(title + " - Generated at: " + java.time.LocalDateTime.now());
+		System.out.println(LINE);
+	}
+
+	public void section(String title) {
+		System.out.println("\n" + title);
+		System.out.println(THIN_LINE);
+		currentUser = null;
+	}
+
+	public void registeredUser(String username, String registrationDate) {
+		System.out.println("   ('" + username + "', '" + registrationDate + "')");
+	}
+
+	/**
+	 * @param logoutTime null if the user is still logged in
+	 */
+	public void login(String username, String loginTime, String logoutTime) {
+		userHeader(username);
+		System.out.println("      Login:  " + loginTime);
+		System.out.println("      Logout: " + (logoutTime == null ? "Still logged in" : logoutTime));
+	}
+
+	public void total(String label, long count) {
+		System.out.println("   " + label + ": " + count);
+	}
+
+	public void session(String username, String sessionStart) {
+		System.out.println("   " + username + " - logged in since " + sessionStart);
+	}
+
+	public void loginCount(String username, long logins) {
+		userHeader(username);
+		System.out.println("      Logins: " + logins);
+	}
+
+	public void uploadSummary(String username, String gameChannel, long uploads) {
+		userHeader(username);
+		System.out.println("      Game: " + gameChannel + " - " + uploads + (uploads == 1 ? " file" : " files"));
+	}
+
+	public void upload(String username, String filename, String uploadTime, String gameChannel) {
+		userHeader(username);
+		System.out.println("      File: " + filename);
+		System.out.println("      Time: " + uploadTime);
+		System.out.println("      Game: " + gameChannel);
+		System.out.println();
+	}
+
+	public void empty(String message) {
+		System.out.println("   " + message);
+	}
+
+	public void end() {
+		System.out.println(LINE);
+	}
+
+	//userHeader - rows come grouped by user, the name is printed once per group
+	private void userHeader(String username) {
+		if (!username.equals(currentUser)) {
+			currentUser = username;
+			System.out.println("\n   User: " + currentUser);
+		}
+	}
+}
@@ -0,0 +1,312 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pool of long-lived connections to the SQL server.
+ * Requests and responses are '\0' terminated; responses are read in bulk and decoded once.
+ * A connection idle for longer than validateAfterMillis is health checked with a ping before
+ * it is reused. A connection that fails is discarded and replaced on the next borrow.
+ * Borrowers wait on a lock, not a monitor, so waiting virtual threads don't pin their carriers.
+ */
+public class SqlConnectionPool {
+
+	private static final int CONNECT_TIMEOUT_MILLIS = 2000;
+	private static final int READ_TIMEOUT_MILLIS = 30000;
+	private static final int READ_CHUNK_SIZE = 1 << 13; //8k
+	private static final int MAX_KEPT_BUFFER = 1 << 20; //1M
+	private static final String PING_SQL = "SELECT 1";
+
+	private final String host;
+	private final int port;
+	private final int maxSize;
+	private final long borrowTimeoutMillis;
+	private final long validateAfterMillis;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition returned = lock.newCondition(); //a connection or a slot became free
+	private final ArrayDeque<PooledConnection> idle = new ArrayDeque<>(); //guarded by lock, most recently used first
+	private int open = 0; //guarded by lock, idle + borrowed
+	private int maxBorrowed = 0; //guarded by lock
+	private boolean closed = false; //guarded by lock
+
+	//metrics
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong connectsOpened = new AtomicLong();
+	private final AtomicLong healthChecksFailed = new AtomicLong();
+	private final AtomicLong borrowWaits = new AtomicLong();
+	private final AtomicLong borrowWaitNanos = new AtomicLong();
+	private final AtomicLong borrowTimeouts = new AtomicLong();
+
+	public SqlConnectionPool(String host, int port, int maxSize, long borrowTimeoutMillis, long validateAfterMillis) {
+		if (host == null)
+			throw new IllegalArgumentException("Host is null!");
+		if (maxSize < 1)
+			throw new IllegalArgumentException("Pool size must be positive!");
+		this.host = host;
+		this.port = port;
+		this.maxSize = maxSize;
+		this.borrowTimeoutMillis = borrowTimeoutMillis;
+		this.validateAfterMillis = validateAfterMillis;
+	}
+
+	/**
+	 * Sends one request and waits for its response.
+	 * A request that fails on a reused connection before any response byte arrived is retried
+	 * once on a new connection - the server dropped the idle connection and never saw it.
+	 * @param request the request, without the terminator
+	 * @return the response, without the terminator
+	 * @throws IOException if no connection could be used or the request failed
+	 */
+	public String execute(String request) throws IOException {
+		return execute(request, READ_TIMEOUT_MILLIS);
+	}
+
+	/**
+	 * Like execute, but waits at most timeoutMillis for each step: a free connection, a new
+	 * connection's connect, and the response. A request that timed out is not retried
+	 * @throws IOException if a step timed out, or as execute
+	 */
+	public String execute(String request, int timeoutMillis) throws IOException {
+		if (request == null)
+			throw new IllegalArgumentException("Request is null!");
+		if (timeoutMillis < 1)
+			throw new IllegalArgumentException("Timeout must be positive!");
+
+		requests.incrementAndGet();
+		byte[] encoded = encode(request);
+		for (int attempt = 0; ; attempt++) {
+			PooledConnection connection = borrow(timeoutMillis);
+			boolean reused = connection.uses > 0;
+			try {
+				String response = connection.roundTrip(encoded, timeoutMillis);
+				giveBack(connection);
+				return response;
+			} catch (IOException ex) {
+				failures.incrementAndGet();
+				discard(connection);
+				if (attempt > 0 || !reused || connection.responseStarted || ex instanceof SocketTimeoutException)
+					throw ex;
+			}
+		}
+	}
+
+	public void close() {
+		lock.lock();
+		try {
+			closed = true;
+			for (PooledConnection connection : idle) {
+				connection.close();
+			}
+			open -= idle.size();
+			idle.clear();
+			returned.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return a one line summary of the pool, for sizing it
+	 */
+	public String metrics() {
+		int openNow, idleNow, peak;
+		lock.lock();
+		try {
+			openNow = open;
+			idleNow = idle.size();
+			peak = maxBorrowed;
+		} finally {
+			lock.unlock();
+		}
+		long waits = borrowWaits.get();
+		return "size=" + maxSize
+				+ " open=" + openNow
+				+ " idle=" + idleNow
+				+ " peakBorrowed=" + peak
+				+ " requests=" + requests.get()
+				+ " failures=" + failures.get()
+				+ " connects=" + connectsOpened.get()
+				+ " healthChecksFailed=" + healthChecksFailed.get()
+				+ " borrowWaits=" + waits
+				+ " avgWaitMicros=" + (waits == 0 ? 0 : borrowWaitNanos.get() / waits / 1000)
+				+ " borrowTimeouts=" + borrowTimeouts.get();
+	}
+
+	private PooledConnection borrow(int timeoutMillis) throws IOException {
+		while (true) {
+			PooledConnection connection = takeIdleOrReserve(Math.min(borrowTimeoutMillis, timeoutMillis));
+			if (connection == null) { //reserved a slot for a new connection
+				try {
+					connection = new PooledConnection(host, port, Math.min(CONNECT_TIMEOUT_MILLIS, timeoutMillis));
+					connectsOpened.incrementAndGet();
+					return connection;
+				} catch (IOException ex) {
+					releaseSlot();
+					throw ex;
+				}
+			}
+			if (System.currentTimeMillis() - connection.lastUsed < validateAfterMillis || isHealthy(connection, timeoutMillis))
+				return connection;
+			healthChecksFailed.incrementAndGet();
+			discard(connection);
+		}
+	}
+
+	//takeIdleOrReserve - an idle connection, or null after reserving room for a new one
+	private PooledConnection takeIdleOrReserve(long waitMillis) throws IOException {
+		lock.lock();
+		try {
+			long waitStart = 0;
+			while (!closed && idle.isEmpty() && open >= maxSize) {
+				long now = System.nanoTime();
+				if (waitStart == 0) {
+					waitStart = now;
+					borrowWaits.incrementAndGet();
+				}
+				long left = waitMillis * 1_000_000L - (now - waitStart);
+				if (left <= 0) {
+					borrowWaitNanos.addAndGet(now - waitStart);
+					borrowTimeouts.incrementAndGet();
+					throw new IOException("Timed out waiting for a SQL connection");
+				}
+				try {
+					returned.await(left, TimeUnit.NANOSECONDS);
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted waiting for a SQL connection");
+				}
+			}
+			if (waitStart != 0) {
+				borrowWaitNanos.addAndGet(System.nanoTime() - waitStart);
+			}
+			if (closed)
+				throw new IOException("SQL connection pool is closed");
+
+			PooledConnection connection = idle.pollFirst();
+			if (connection == null) {
+				open++;
+			}
+			maxBorrowed = Math.max(maxBorrowed, open - idle.size());
+			return connection;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private boolean isHealthy(PooledConnection connection, int timeoutMillis) {
+		try {
+			return connection.roundTrip(encode(PING_SQL), timeoutMillis).startsWith("SUCCESS");
+		} catch (IOException ex) {
+			return false;
+		}
+	}
+
+	private void giveBack(PooledConnection connection) {
+		connection.lastUsed = System.currentTimeMillis();
+		connection.uses++;
+		lock.lock();
+		try {
+			if (closed) {
+				connection.close();
+				open--;
+				return;
+			}
+			idle.addFirst(connection); //hot connections stay hot, cold ones age out through the health check
+			returned.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void discard(PooledConnection connection) {
+		connection.close();
+		releaseSlot();
+	}
+
+	//releaseSlot - gives back the slot of a discarded connection or of a failed connect
+	private void releaseSlot() {
+		lock.lock();
+		try {
+			open--;
+			returned.signal();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static byte[] encode(String request) {
+		byte[] body = request.getBytes(StandardCharsets.UTF_8);
+		return Arrays.copyOf(body, body.length + 1); //'\0' terminated
+	}
+
+	private static final class PooledConnection {
+		private final Socket socket;
+		private final InputStream in;
+		private final OutputStream out;
+		private byte[] response = new byte[READ_CHUNK_SIZE];
+		private long lastUsed = System.currentTimeMillis();
+		private long uses = 0;
+		private boolean responseStarted; //of the last round trip
+
+		PooledConnection(String host, int port, int connectTimeoutMillis) throws IOException {
+			socket = new Socket();
+			try {
+				socket.setTcpNoDelay(true);
+				socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+				in = socket.getInputStream();
+				out = socket.getOutputStream();
+			} catch (IOException ex) {
+				socket.close();
+				throw ex;
+			}
+		}
+
+		String roundTrip(byte[] request, int timeoutMillis) throws IOException {
+			responseStarted = false;
+			socket.setSoTimeout(timeoutMillis); //of each read, not the whole response
+			out.write(request);
+			out.flush();
+
+			int length = 0;
+			while (true) {
+				if (length == response.length) {
+					response = Arrays.copyOf(response, response.length * 2);
+				}
+				int read = in.read(response, length, response.length - length);
+				if (read == -1)
+					throw new IOException("SQL server closed the connection");
+				responseStarted = true;
+				for (int i = length; i < length + read; i++) {
+					if (response[i] == '\0') { //one response in flight, nothing follows it
+						String decoded = new String(response, 0, i, StandardCharsets.UTF_8);
+						if (response.length > MAX_KEPT_BUFFER) {
+							response = new byte[READ_CHUNK_SIZE]; //don't pin the memory of a huge report
+						}
+						return decoded;
+					}
+				}
+				length += read;
+			}
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException ignored) {
+			}
+		}
+	}
+}
@@ -0,0 +1,363 @@
+package bgu.spl.net.impl.data;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Persistence on the Python/SQLite side-car: statements go over pooled connections, records are
+ * written behind the STOMP path by an AuditWriter, in batches of one transaction each.
+ */
+public final class SqlPersistence implements Persistence {
+	private static final String BATCH_PREFIX = "BATCH ";
+	private final SqlConnectionPool sqlPool;
+	private final AuditWriter auditWriter;
+	private final int reportPageSize;
+	private final int lookupTimeoutMillis;
+
+	public SqlPersistence(String sqlHost, int sqlPort) {
+		this.sqlPool = new SqlConnectionPool(sqlHost, sqlPort,
+			Integer.getInteger("stomp.sqlPoolSize", 4),
+			Long.getLong("stomp.sqlBorrowTimeoutMillis", 5000L),
+			Long.getLong("stomp.sqlValidateAfterMillis", 5000L));
+		this.reportPageSize = Math.max(1, Integer.getInteger("stomp.reportPageSize", 1000));
+		this.lookupTimeoutMillis = Math.max(1, Integer.getInteger("stomp.userLookupTimeoutMillis", 1000));
+		// Last: the writer thread starts right away and calls back into this object
+		this.auditWriter = new AuditWriter(this::writeAuditBatch,
+			Integer.getInteger("stomp.auditQueueSize", 10000),
+			Integer.getInteger("stomp.auditBatchSize", 100),
+			Long.getLong("stomp.auditFlushMillis", 50L),
+			AuditWriter.Overflow.valueOf(System.getProperty("stomp.auditOverflow", "DROP")));
+	}
+
+	/**
+	 * Looks the user up in the users table, the password is read as hex so any character survives.
+	 * A CONNECT waits for it, so it gives up after stomp.userLookupTimeoutMillis
+	 */
+	@Override
+	public String findPassword(String username) throws IOException {
+		String result = sqlPool.execute(String.format(
+			"SELECT hex(password) FROM users WHERE username='%s'", escapeSql(username)), lookupTimeoutMillis);
+		if (!result.startsWith("SUCCESS"))
+			throw new IOException(result);
+		int start = result.indexOf("|('");
+		if (start == -1)
+			return null;
+		String hex = result.substring(start + 3, result.indexOf('\'', start + 3));
+		byte[] password = new byte[hex.length() / 2];
+		for (int i = 0; i < password.length; i++) {
+			password[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return new String(password, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Inserts the user right away rather than through the audit writer, which may drop records.
+	 * Bounded by stomp.userLookupTimeoutMillis like the lookup
+	 */
+	@Override
+	public void userRegistered(String username, String password) throws IOException {
+		String sql = String.format(
+			"INSERT INTO users (username, password, registration_date) VALUES ('%s', '%s', datetime('now'))",
+			escapeSql(username), escapeSql(password)
+		);
+		String result = sqlPool.execute(sql, lookupTimeoutMillis);
+		if (!result.startsWith("SUCCESS"))
+			throw new IOException(result);
+	}
+
+	@Override
+	public void userLoggedIn(String username) {
+		String sql = String.format(
+			"INSERT INTO login_history (username, login_time) VALUES ('%s', datetime('now'))",
+			escapeSql(username)
+		);
+		audit(sql);
+	}
+
+	@Override
+	public void userLoggedOut(String username) {
+		// UPDATE ... ORDER BY ... LIMIT needs a SQLite compile option, pick the row in a subquery
+		String sql = String.format(
+			"UPDATE login_history SET logout_time=datetime('now') " +
+			"WHERE id=(SELECT id FROM login_history WHERE username='%s' AND logout_time IS NULL " +
+			"ORDER BY login_time DESC, id DESC LIMIT 1)",
+			escapeSql(username)
+		);
+		audit(sql);
+	}
+
+	@Override
+	public void fileUploaded(String username, String filename, String gameChannel) {
+		String sql = String.format(
+			"INSERT INTO file_tracking (username, filename, upload_time, game_channel) " +
+			"VALUES ('%s', '%s', datetime('now'), '%s')",
+			escapeSql(username), escapeSql(filename), escapeSql(gameChannel)
+		);
+		audit(sql);
+	}
+
+	/**
+	 * Write all queued audit statements, called on shutdown before the report
+	 * @param timeoutMillis how long to wait for the writer
+	 */
+	@Override
+	public void close(long timeoutMillis) {
+		if (!auditWriter.close(timeoutMillis)) {
+			System.err.println("Audit writer didn't finish within " + timeoutMillis + "ms");
+		}
+	}
+
+	@Override
+	public String metrics() {
+		return "SQL CONNECTION POOL: " + sqlPool.metrics() + "\nAUDIT WRITER: " + auditWriter.metrics();
+	}
+
+	/**
+	 * Execute SQL query and return result
+	 * @param sql SQL query string
+	 * @return Result string from SQL server
+	 */
+	private String executeSQL(String sql) {
+		try {
+			// Runs on a pooled connection, the SQL server keeps serving it between statements
+			return sqlPool.execute(sql);
+		} catch (Exception e) {
+			System.err.println("SQL Error: " + e.getMessage());
+			return "ERROR:" + e.getMessage();
+		}
+	}
+
+	/**
+	 * Queue an audit statement for the write-behind writer, the caller never waits for SQL
+	 * @param sql SQL statement string
+	 */
+	private void audit(String sql) {
+		auditWriter.submit(sql);
+	}
+
+	//writeAuditBatch - the audit writer's sink, returns how many statements failed
+	private int writeAuditBatch(List<String> statements) {
+		String[] results;
+		try {
+			results = executeBatch(statements);
+		} catch (IOException e) {
+			// It may have been committed anyway, sent again it could be written twice
+			System.err.println("Audit batch of " + statements.size() + " statements failed: " + e.getMessage());
+			return statements.size();
+		}
+		for (String result : results) {
+			if (result.startsWith("ERROR")) {
+				// Rolled back, so one bad record must not cost the whole batch: write it one by one instead
+				int failed = 0;
+				for (String statement : statements) {
+					if (!executeSQL(statement).startsWith("SUCCESS")) {
+						failed++;
+					}
+				}
+				return failed;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Execute several statements in one request and one SQL transaction
+	 * @param statements SQL statement strings
+	 * @return the result of every statement, in order. If one fails nothing is committed:
+	 * it reports its error and the others "ERROR:rolled back"
+	 * @throws IOException if the outcome is unknown: the request failed, timed out, or got no batch
+	 * result back. The batch may have been committed, so it must not be sent again as it is
+	 */
+	public String[] executeBatch(List<String> statements) throws IOException {
+		if (statements == null)
+			throw new IllegalArgumentException("Statements are null!");
+
+		String[] results = new String[statements.size()];
+		if (results.length == 0)
+			return results;
+
+		// BATCH <n>\n then <length>\n<statement> per statement, lengths in code points
+		StringBuilder request = new StringBuilder(BATCH_PREFIX).append(results.length).append('\n');
+		for (String sql : statements) {
+			request.append(sql.codePointCount(0, sql.length())).append('\n').append(sql);
+		}
+
+		String response = sqlPool.execute(request.toString());
+		try {
+			if (!response.startsWith(BATCH_PREFIX))
+				throw new IOException("Not a batch result: " + response);
+			int position = response.indexOf('\n') + 1;
+			for (int i = 0; i < results.length; i++) {
+				int lengthEnd = response.indexOf('\n', position);
+				int length = Integer.parseInt(response.substring(position, lengthEnd));
+				position = response.offsetByCodePoints(lengthEnd + 1, length);
+				results[i] = response.substring(lengthEnd + 1, position);
+			}
+		} catch (RuntimeException e) { // a malformed response
+			throw new IOException("Malformed batch result: " + response);
+		}
+		return results;
+	}
+
+	/**
+	 * Escape SQL special characters to prevent SQL injection
+	 */
+	private String escapeSql(String str) {
+		if (str == null) return "";
+		return str.replace("'", "''");
+	}
+
+	/**
+	 * Seed the aggregates with the totals, counted by SQL - one row each, or one per game channel
+	 */
+	@Override
+	public void load(ReportAggregates aggregates) {
+		for (String[] fields : rows("SELECT COUNT(*) FROM users")) {
+			aggregates.usersRecorded(Long.parseLong(fields[0]));
+		}
+		for (String[] fields : rows("SELECT COUNT(*) FROM login_history")) {
+			aggregates.loginsRecorded(Long.parseLong(fields[0]));
+		}
+		for (String[] fields : rows("SELECT game_channel, COUNT(*) FROM file_tracking GROUP BY game_channel")) {
+			if (fields.length >= 2) {
+				aggregates.uploadsRecorded(fields[0], Long.parseLong(fields[1]));
+			}
+		}
+	}
+
+	/**
+	 * Print the per user totals, counted by SQL a page of groups per query
+	 */
+	@Override
+	public void printUserTotals(ReportPrinter report) {
+		report.section("3. LOGINS PER USER:");
+		boolean any = printPages(
+			"SELECT username, COUNT(*) FROM login_history",
+			last -> String.format("username > '%s'", escapeSql(last[0])),
+			"username", "username", 2,
+			fields -> report.loginCount(fields[0], Long.parseLong(fields[1])));
+		if (!any) {
+			report.empty("No login history");
+		}
+
+		report.section("4. FILE UPLOADS PER USER:");
+		any = printPages(
+			"SELECT username, game_channel, COUNT(*) FROM file_tracking",
+			last -> String.format("username > '%1$s' OR (username = '%1$s' AND game_channel > '%2$s')",
+				escapeSql(last[0]), escapeSql(last[1])),
+			"username, game_channel", "username, game_channel", 3,
+			fields -> report.uploadSummary(fields[0], fields[1], Long.parseLong(fields[2])));
+		if (!any) {
+			report.empty("No files uploaded");
+		}
+	}
+
+	/**
+	 * Generate and print the detailed server report, a page of rows per SQL query
+	 */
+	@Override
+	public void printReport() {
+		ReportPrinter report = new ReportPrinter();
+		report.begin("SERVER REPORT DETAIL");
+		
+		// List all users
+		report.section("1. REGISTERED USERS:");
+		boolean any = printPages(
+			"SELECT rowid, username, registration_date FROM users",
+			last -> String.format("registration_date > '%s' OR (registration_date = '%s' AND rowid > %d)",
+				escapeSql(last[2]), escapeSql(last[2]), Long.parseLong(last[0])),
+			null, "registration_date, rowid", 3,
+			fields -> report.registeredUser(fields[1], fields[2]));
+		if (!any) {
+			report.empty("No users registered");
+		}
+		
+		// Login history for each user
+		report.section("2. LOGIN HISTORY:");
+		any = printPages(
+			"SELECT id, username, login_time, logout_time FROM login_history",
+			last -> String.format("username > '%1$s' OR (username = '%1$s' AND (login_time < '%2$s' OR (login_time = '%2$s' AND id < %3$d)))",
+				escapeSql(last[1]), escapeSql(last[2]), Long.parseLong(last[0])),
+			null, "username, login_time DESC, id DESC", 4,
+			fields -> report.login(fields[1], fields[2], fields[3].equals("None") ? null : fields[3]));
+		if (!any) {
+			report.empty("No login history");
+		}
+		
+		// File uploads for each user
+		report.section("3. FILE UPLOADS:");
+		any = printPages(
+			"SELECT id, username, filename, upload_time, game_channel FROM file_tracking",
+			last -> String.format("username > '%1$s' OR (username = '%1$s' AND (upload_time < '%2$s' OR (upload_time = '%2$s' AND id < %3$d)))",
+				escapeSql(last[1]), escapeSql(last[3]), Long.parseLong(last[0])),
+			null, "username, upload_time DESC, id DESC", 5,
+			fields -> report.upload(fields[1], fields[2], fields[3], fields[4]));
+		if (!any) {
+			report.empty("No files uploaded");
+		}
+		
+		report.end();
+	}
+
+	/**
+	 * Print a query's rows a page at a time. Each page starts right after the last row of the
+	 * previous one (keyset paging), so no page is more expensive than the first
+	 * @param query the SELECT without WHERE, ORDER BY and LIMIT
+	 * @param after the WHERE condition for the rows following a row
+	 * @param groupBy the GROUP BY columns, or null if the rows aren't grouped
+	 * @param order the ORDER BY columns, they must identify a row
+	 * @param fields the number of fields in a row
+	 * @return false if there were no rows
+	 */
+	private boolean printPages(String query, Function<String[], String> after, String groupBy, String order, int fields,
+			Consumer<String[]> printer) {
+		String[] last = null;
+		boolean any = false;
+		while (true) {
+			String sql = query + (last == null ? "" : " WHERE " + after.apply(last))
+				+ (groupBy == null ? "" : " GROUP BY " + groupBy)
+				+ " ORDER BY " + order + " LIMIT " + reportPageSize;
+			List<String[]> page = rows(sql);
+			for (String[] row : page) {
+				if (row.length >= fields) {
+					printer.accept(row);
+					any = true;
+				}
+			}
+			if (page.size() < reportPageSize)
+				return any;
+			last = page.get(page.size() - 1);
+			if (last.length < fields) {
+				System.err.println("Report: can't page past a malformed row, the rest is left out");
+				return any;
+			}
+		}
+	}
+
+	private List<String[]> rows(String sql) {
+		String result = executeSQL(sql);
+		if (!result.startsWith("SUCCESS")) {
+			System.err.println("Report query failed: " + result);
+			return Collections.emptyList();
+		}
+		String[] parts = result.split("\\|");
+		List<String[]> rows = new ArrayList<>(parts.length - 1);
+		for (int i = 1; i < parts.length; i++) {
+			rows.add(parseRow(parts[i]));
+		}
+		return rows;
+	}
+
+	private static String[] parseRow(String row) {
+		String fields = row.replace("(", "").replace(")", "").replace("'", "");
+		if (fields.endsWith(",")) { //a one column row prints as (x,)
+			fields = fields.substring(0, fields.length() - 1);
+		}
+		return fields.split(", ");
+	}
+}
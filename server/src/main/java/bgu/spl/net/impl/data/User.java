@@ -1,10 +1,19 @@
 package bgu.spl.net.impl.data;
 
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
 public class User {
+	private static final int LOGGED_OUT = 0;
+	private static final int LOGGED_IN = 1;
+	private static final int EVICTED = 2; //dropped from UserCache, final
+	private static final AtomicIntegerFieldUpdater<User> STATE =
+		AtomicIntegerFieldUpdater.newUpdater(User.class, "state");
+
 	public final String name;
 	public final String password;
-	private int connectionId;
-	private boolean isLoggedIn = false;
+	private volatile int connectionId;
+	private volatile int state = LOGGED_OUT;
+	volatile boolean referenced = true; //UserCache's clock bit, set on every hit
 
 	public User(int connectionId, String name, String password) {
 		this.connectionId = connectionId;
@@ -13,15 +22,36 @@ public class User {
 	}
 
 	public boolean isLoggedIn() {
-		return isLoggedIn;
+		return state == LOGGED_IN;
+	}
+
+	public boolean isEvicted() {
+		return state == EVICTED;
 	}
 
-	public void login() {
-		isLoggedIn = true;
+	/**
+	 * @return false if the user is logged in or was evicted
+	 */
+	public boolean tryLogin() {
+		return STATE.compareAndSet(this, LOGGED_OUT, LOGGED_IN);
 	}
 
 	public void logout() {
-		isLoggedIn = false;
+		STATE.compareAndSet(this, LOGGED_IN, LOGGED_OUT);
+	}
+
+	/**
+	 * @return false if the user is logged in, it stays cached
+	 */
+	boolean tryEvict() {
+		return STATE.compareAndSet(this, LOGGED_OUT, EVICTED);
+	}
+
+	/**
+	 * Evicts the user whether logged in or not
+	 */
+	void evict() {
+		state = EVICTED;
 	}
 
 	public int getConnectionId() {
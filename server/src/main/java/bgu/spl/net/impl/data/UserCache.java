@@ -0,0 +1,96 @@
+package bgu.spl.net.impl.data;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A size bounded cache of users, filled on demand from the persistence backend.
+ * Eviction is CLOCK (second chance): a hit only sets the user's referenced bit, an insert beyond
+ * the capacity moves the hand over the ring of cached users, clearing set bits and evicting users
+ * found with a clear one. Logged-in users are pinned and skipped, so with more of them than the
+ * capacity the cache grows past it rather than forget someone who is logged in. The hand moves at
+ * most SWEEP_STEPS per insert, so an insert stays O(1) however many users are pinned, and later
+ * inserts shrink the cache back once they log out.
+ * An evicted user is marked so, a login racing with the eviction looks the user up again.
+ * There are no locks: the ring is a lock-free queue, and an insert that finds another one
+ * sweeping leaves the eviction to it, the capacity is briefly exceeded instead of waited for.
+ */
+public class UserCache {
+
+	private static final int SWEEP_STEPS = 16;
+
+	private final ConcurrentHashMap<String, User> users = new ConcurrentHashMap<>();
+	private final ConcurrentLinkedQueue<User> clock = new ConcurrentLinkedQueue<>(); //the ring, hand at the head
+	private final AtomicBoolean sweeping = new AtomicBoolean(false);
+	private final int capacity;
+
+	public UserCache(int capacity) {
+		if (capacity < 1)
+			throw new IllegalArgumentException("Capacity must be positive!");
+		this.capacity = capacity;
+	}
+
+	/**
+	 * @return the cached user, or null on a miss
+	 */
+	public User get(String username) {
+		User user = users.get(username);
+		if (user != null) {
+			user.referenced = true;
+		}
+		return user;
+	}
+
+	/**
+	 * Caches the user unless another one with that name got there first
+	 * @return the user now cached under the name
+	 */
+	public User putIfAbsent(User user) {
+		User existing = users.putIfAbsent(user.name, user);
+		if (existing != null) {
+			existing.referenced = true;
+			return existing;
+		}
+		clock.add(user);
+		if (users.size() > capacity && sweeping.compareAndSet(false, true)) {
+			try {
+				evictOverCapacity();
+			} finally {
+				sweeping.set(false);
+			}
+		}
+		return user;
+	}
+
+	/**
+	 * Drops a user that must not stay cached, e.g. one whose registration failed.
+	 * It is marked evicted, so a login racing with the removal looks the user up again
+	 */
+	public void remove(User user) {
+		user.evict();
+		users.remove(user.name, user);
+	}
+
+	public int size() {
+		return users.size();
+	}
+
+	//evictOverCapacity - a few steps of the hand, not a whole turn, see SWEEP_STEPS
+	private void evictOverCapacity() {
+		int steps = SWEEP_STEPS;
+		while (users.size() > capacity && steps-- > 0) {
+			User user = clock.poll();
+			if (user == null)
+				return;
+			if (user.isEvicted())
+				continue; //removed, only its place in the ring was left
+			if (user.referenced || !user.tryEvict()) { //logged in users are pinned
+				user.referenced = false;
+				clock.add(user);
+			} else {
+				users.remove(user.name, user);
+			}
+		}
+	}
+}
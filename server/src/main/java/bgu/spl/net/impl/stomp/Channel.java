@@ -0,0 +1,89 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An interned destination: a dense id, its name and a copy-on-write snapshot of its subscribers.
+ * Once a channel is retired by the registry it takes no more subscribers and its id may be reused.
+ */
+public final class Channel {
+    // ================ Fields ================
+    private final int id;
+    private final String name;
+    private final byte[] nameBytes;
+    private volatile Subscribers subscribers = Subscribers.EMPTY;
+    private long idleSince; //guarded by this, when the last subscriber left
+    private boolean retired = false; //guarded by this
+
+
+    // ================ Constructors ================
+    /*package*/ Channel(int id, String name) {
+        this.id = id;
+        this.name = name;
+        this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        this.idleSince = System.currentTimeMillis();
+    }
+
+
+    // ================ Methods ================
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public Subscribers getSubscribers() {
+        return subscribers;
+    }
+
+    /*package*/ byte[] nameBytes() {
+        return nameBytes; //not copied, callers only compare against it
+    }
+
+    /**
+     * Adds the connection, or points it to another subscription id if it's already subscribed
+     * @param isNew the caller knows the connection isn't subscribed yet, skips the search
+     * @return false if the channel is retired and the caller must intern the name again
+     */
+    /*package*/ synchronized boolean put(int connectionId, int subscriptionId, boolean isNew) {
+        if (retired)
+            return false;
+
+        int index = isNew ? -1 : subscribers.indexOf(connectionId);
+        if (index < 0) {
+            subscribers = subscribers.with(connectionId, subscriptionId);
+        } else if (subscribers.subscriptionId(index) != subscriptionId) {
+            subscribers = subscribers.withSubscriptionId(index, subscriptionId);
+        }
+        return true;
+    }
+
+    /*package*/ synchronized void remove(int connectionId) {
+        int index = subscribers.indexOf(connectionId);
+        if (index < 0)
+            return;
+
+        subscribers = subscribers.without(index);
+        if (subscribers.size() == 0) {
+            idleSince = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Retires the channel if it had no subscribers since before the cutoff
+     * @return true if it was retired by this call
+     */
+    /*package*/ synchronized boolean retireIfIdleSince(long cutoffMillis) {
+        if (retired || subscribers.size() > 0 || idleSince > cutoffMillis)
+            return false;
+
+        retired = true;
+        return true;
+    }
+
+    /*package*/ synchronized boolean isRetired() {
+        return retired;
+    }
+}
@@ -0,0 +1,138 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Interns destinations to dense channel ids, the hot path works with ids instead of names.
+ * A channel without subscribers for idleMillis is retired and its id reused. Sweeps run lazily,
+ * at most every half idle period, from subscribe and unsubscribe. A subscribe that raced a sweep
+ * sees the retired channel and interns the name again.
+ */
+public class ChannelRegistry {
+    // ================ Fields ================
+    private static final long DEFAULT_IDLE_MILLIS = Long.getLong("stomp.channelIdleMillis", 60_000L);
+
+    private final ConcurrentHashMap<String, Channel> byName = new ConcurrentHashMap<>();
+    private volatile Channel[] byId = new Channel[64]; //slots are written before the array is republished
+    private final Object idLock = new Object();
+    private int[] freeIds = new int[16]; //guarded by idLock
+    private int freeCount = 0;
+    private int nextId = 0;
+    private final long idleMillis; //negative disables eviction
+    private final AtomicLong nextSweep = new AtomicLong();
+
+
+    // ================ Constructors ================
+    public ChannelRegistry() {
+        this(DEFAULT_IDLE_MILLIS);
+    }
+
+    public ChannelRegistry(long idleMillis) {
+        this.idleMillis = idleMillis;
+        nextSweep.set(System.currentTimeMillis() + sweepInterval());
+    }
+
+
+    // ================ Methods ================
+    /**
+     * Interns the name if needed and adds the connection to the channel
+     * @param isNew the caller knows the connection isn't subscribed to this channel yet
+     * @return the channel the connection was added to
+     */
+    public Channel subscribe(String name, int connectionId, int subscriptionId, boolean isNew) {
+        if (name == null)
+            throw new IllegalArgumentException("Channel is null!");
+
+        maybeSweep();
+        while (true) {
+            Channel channel = byName.computeIfAbsent(name, this::intern);
+            if (channel.put(connectionId, subscriptionId, isNew))
+                return channel;
+            byName.remove(name, channel); //retired by a sweep that hasn't unmapped it yet
+        }
+    }
+
+    public void unsubscribe(Channel channel, int connectionId) {
+        if (channel == null)
+            throw new IllegalArgumentException("Channel is null!");
+
+        channel.remove(connectionId);
+        maybeSweep();
+    }
+
+    /**
+     * @return the live channel with this id, or null
+     */
+    public Channel get(int channelId) {
+        Channel[] table = byId;
+        if (channelId < 0 || channelId >= table.length)
+            return null;
+        return table[channelId];
+    }
+
+    /**
+     * @return the channel interned for this name, or null
+     */
+    public Channel get(String name) {
+        if (name == null)
+            throw new IllegalArgumentException("Channel is null!");
+        return byName.get(name);
+    }
+
+    public int size() {
+        return byName.size();
+    }
+
+
+    // ================ Helper Methods ================
+    //intern - called inside computeIfAbsent
+    private Channel intern(String name) {
+        synchronized (idLock) {
+            int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+            Channel[] table = byId;
+            if (id >= table.length) {
+                table = Arrays.copyOf(table, table.length * 2);
+            }
+            Channel channel = new Channel(id, name);
+            table[id] = channel;
+            byId = table; //volatile write publishes the slot
+            return channel;
+        }
+    }
+
+    private void release(Channel channel) {
+        synchronized (idLock) {
+            Channel[] table = byId;
+            table[channel.getId()] = null;
+            byId = table;
+            if (freeCount == freeIds.length) {
+                freeIds = Arrays.copyOf(freeIds, freeCount * 2);
+            }
+            freeIds[freeCount++] = channel.getId();
+        }
+    }
+
+    private void maybeSweep() {
+        if (idleMillis < 0)
+            return;
+
+        long now = System.currentTimeMillis();
+        long next = nextSweep.get();
+        if (now < next || !nextSweep.compareAndSet(next, now + sweepInterval()))
+            return; //not due, or another thread sweeps
+
+        long cutoff = now - idleMillis;
+        for (Channel channel : byName.values()) {
+            if (channel.retireIfIdleSince(cutoff)) {
+                byName.remove(channel.getName(), channel);
+                release(channel); //no connection refers to it, the last subscriber is gone
+            }
+        }
+    }
+
+    private long sweepInterval() {
+        return Math.max(idleMillis / 2, 1);
+    }
+}
@@ -2,26 +2,52 @@ package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.srv.Connections;
 import bgu.spl.net.srv.ConnectionHandler;
+import bgu.spl.net.srv.HashedWheelTimer;
+import bgu.spl.net.srv.Heartbeat;
 
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
 
 
 public class ConnectionsImpl<T> implements Connections<T> {
     // ================ Fields ================
-    private final ConcurrentHashMap<Integer, ConnectionHandler<T>> handlers;
-    private final ConcurrentHashMap<String, ConcurrentHashMap<Integer, Integer>> channelSubscribers; //channel -> (connId -> subId)
-    private final ConcurrentHashMap<Integer, ConcurrentHashMap<Integer, String>> connectionSubscriptions; //connId -> (subId -> channel)
-    private final AtomicInteger connectionIdCounter;
+    private static final int NOT_SUBSCRIBED = Integer.MIN_VALUE;
+    private static final int NO_CHANNEL = -1;
+    private static final int DEFAULT_MAX_CONNECTIONS = Integer.getInteger("stomp.maxConnections", 1 << 16);
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = Long.getLong("stomp.idleTimeoutMillis", 600000L); //10m, the bundled client sends no heart-beats
+    private static final long TIMER_TICK_MILLIS = 100;
+    private static final int TIMER_TICKS_PER_WHEEL = 512;
+    private static final long MAX_READ_PAUSE_MILLIS = Long.getLong("stomp.backpressureMaxPauseMillis", 10000L); //0 - no limit
+    private final SlotTable<Connection<T>> connections; //connId -> handler and its (subId, channelId) arrays
+    private final ChannelRegistry channels; //channel name -> id -> (connId, subId) arrays
+    private final HashedWheelTimer timer; //heart-beats and idle timeouts of all connections
+    private final long idleTimeoutMillis;
 
 
     // ================ Constructors ================
     public ConnectionsImpl() {
-        handlers = new ConcurrentHashMap<>();
-        channelSubscribers = new ConcurrentHashMap<>();
-        connectionSubscriptions = new ConcurrentHashMap<>();
-        connectionIdCounter = new AtomicInteger(1);
+        this(new ChannelRegistry(), DEFAULT_MAX_CONNECTIONS);
+    }
+
+    public ConnectionsImpl(ChannelRegistry channels, int maxConnections) {
+        this(channels, maxConnections, new HashedWheelTimer(TIMER_TICK_MILLIS, TIMER_TICKS_PER_WHEEL), DEFAULT_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * @param idleTimeoutMillis connections silent for longer are closed, unless they negotiate
+     * heart-beats. 0 keeps them open
+     */
+    public ConnectionsImpl(ChannelRegistry channels, int maxConnections, HashedWheelTimer timer, long idleTimeoutMillis) {
+        if (channels == null)
+            throw new IllegalArgumentException("Channel registry is null!");
+        if (timer == null)
+            throw new IllegalArgumentException("Timer is null!");
+
+        this.connections = new SlotTable<>(maxConnections);
+        this.channels = channels;
+        this.timer = timer;
+        this.idleTimeoutMillis = idleTimeoutMillis;
     }
 
 
@@ -31,14 +57,41 @@ public class ConnectionsImpl<T> implements Connections<T> {
         if (msg == null)
             throw new IllegalArgumentException("Message is null!");
          
-        ConnectionHandler<T> thisHandler = handlers.get(connectionId);
-        if (thisHandler == null)
+        Connection<T> thisConnection = connections.get(connectionId); //stale ids of closed connections miss
+        if (thisConnection == null)
             return false;
         
-        thisHandler.send(msg);
+        thisConnection.handler.send(msg);
         return true;
     }
     
+    /**
+     * Sends a message published by another connection. While the recipient is saturated the
+     * publisher isn't read from, until the recipient drains or MAX_READ_PAUSE_MILLIS pass, so a
+     * stalled subscriber holds a publisher up only for a while and then meets its queue's limits.
+     * @return false if the recipient is gone
+     */
+    public boolean publish(int publisherId, int connectionId, T msg) {
+        if (!send(connectionId, msg))
+            return false;
+
+        Connection<T> recipient = connections.get(connectionId);
+        if (recipient == null || !recipient.handler.isSaturated()) //the common case, one volatile read
+            return true;
+        Connection<T> publisher = connections.get(publisherId);
+        if (publisher == null)
+            return true;
+
+        publisher.handler.pauseReading(); //before registering, a resume must never come first
+        ReadResume resume = new ReadResume(publisher.handler);
+        if (!recipient.handler.whenDrained(resume)) {
+            resume.run(); //drained meanwhile
+        } else if (MAX_READ_PAUSE_MILLIS > 0) {
+            timer.schedule(resume, MAX_READ_PAUSE_MILLIS);
+        }
+        return true;
+    }
+
     @Override
     public void send(String channel, T msg) {
         //Send identical msg to all channel subscribers (STOMP wont use)
@@ -47,79 +100,281 @@ public class ConnectionsImpl<T> implements Connections<T> {
         if (msg == null)
             throw new IllegalArgumentException("Message is null!");
 
-        ConcurrentHashMap<Integer, Integer> recipients = channelSubscribers.get(channel);
-        if (recipients == null)
-            return; //swallowing when messaging to channel with no subscribers 
-        
-        for (Integer connectionId : recipients.keySet()) {
-            send(connectionId, msg);            
+        Subscribers recipients = getChannelSubscribers(channel);
+        for (int i = 0; i < recipients.size(); i++) { //swallowing when messaging to channel with no subscribers
+            send(recipients.connectionId(i), msg);
         }
     }
 
     @Override
     public void disconnect(int connectionId) {
         //Remove handler, clean all subscriptions for this connection
-        handlers.remove(connectionId);
-        
-        ConcurrentHashMap<Integer, String> mySubscriptions = connectionSubscriptions.get(connectionId);
-        if (mySubscriptions == null) //nothing to unsub from
+        Connection<T> thisConnection = connections.remove(connectionId);
+        if (thisConnection == null) //already disconnected
             return;
+        thisConnection.heartbeat.cancel();
         
-        for (String channel : mySubscriptions.values()) { //unsub every channel im subbed to
-            ConcurrentHashMap<Integer, Integer> currentChannelSubs = channelSubscribers.get(channel);
-            if (currentChannelSubs == null) //nothing to unsub from
+        ConnectionSubscriptions mySubscriptions = thisConnection.subscriptions;
+
+        int[] myChannels;
+        synchronized (mySubscriptions) {
+            myChannels = mySubscriptions.clear();
+        }
+        for (int channelId : myChannels) { //unsub every channel im subbed to
+            Channel currentChannel = channels.get(channelId);
+            if (currentChannel == null) //nothing to unsub from
                 continue;
-            currentChannelSubs.remove(connectionId); //unsub          
+            channels.unsubscribe(currentChannel, connectionId);
         }
-        
-        connectionSubscriptions.remove(connectionId);
     }
 
 
     // ================ Additional Methods ================
+    /**
+     * Stores the handler in a free slot
+     * @return the connection id, unique among live connections and not reused for a long time
+     * @throws IllegalStateException if stomp.maxConnections connections are open
+     */
     public int registerHandler(ConnectionHandler<T> handler) {
-        //Generating new connectionId, stores handler returns connectionId
         if (handler == null)
             throw new IllegalArgumentException("Handler is null!");
         
-        int connectionId = connectionIdCounter.getAndIncrement();
-        handlers.put(connectionId, handler);
-        connectionSubscriptions.put(connectionId, new ConcurrentHashMap<Integer, String>());
-    
+        Heartbeat heartbeat = new Heartbeat(handler, timer);
+        int connectionId = connections.add(new Connection<>(handler, heartbeat));
+        if (idleTimeoutMillis > 0) {
+            heartbeat.configure(0, idleTimeoutMillis);
+        }
         return connectionId;
     }
 
+    /**
+     * @return the connection's heart-beat, or null if it's disconnected
+     */
+    public Heartbeat heartbeat(int connectionId) {
+        Connection<T> thisConnection = connections.get(connectionId);
+        return thisConnection == null ? null : thisConnection.heartbeat;
+    }
+
+    /**
+     * Applies heart-beats negotiated on CONNECT, or the idle timeout if the client sends none
+     * @param sendEveryMillis how often the server writes, 0 for never
+     * @param expectEveryMillis how often the client writes, 0 for never
+     */
+    public void configureHeartbeat(int connectionId, long sendEveryMillis, long expectEveryMillis) {
+        Heartbeat heartbeat = heartbeat(connectionId);
+        if (heartbeat == null)
+            return;
+
+        //the client's beats may be late by up to a whole interval before it counts as dead
+        long readTimeout = expectEveryMillis > 0 ? 2 * expectEveryMillis : idleTimeoutMillis;
+        heartbeat.configure(sendEveryMillis, readTimeout);
+    }
+
     public void subscribe(int connectionId, String channel, int subscriptionId) {
-        //Adding connectionId to both maps
-        if (!handlers.containsKey(connectionId))
+        //Adding connectionId to both indexes
+        Connection<T> thisConnection = connections.get(connectionId);
+        if (thisConnection == null)
             throw new IllegalArgumentException("Connection doesn't exist!");
         if (channel == null)
             throw new IllegalArgumentException("Channel is null!");
 
-        channelSubscribers.computeIfAbsent(channel, ignored -> new ConcurrentHashMap<>()).put(connectionId, subscriptionId);
-        connectionSubscriptions.get(connectionId).put(subscriptionId, channel);
+        ConnectionSubscriptions mySubscriptions = thisConnection.subscriptions;
+        synchronized (mySubscriptions) {
+            Channel previous = channels.get(mySubscriptions.channelIdOf(subscriptionId));
+            if (previous != null && previous.getName().equals(channel))
+                return; //already subscribed with this id
+
+            boolean isNew = findChannel(mySubscriptions, channel) == null;
+            Channel target = channels.subscribe(channel, connectionId, subscriptionId, isNew);
+            mySubscriptions.put(subscriptionId, target.getId());
+            if (previous != null) //subscription id reused for another channel
+                unsubscribeChannel(connectionId, mySubscriptions, previous);
+        }
     }
 
     public String unsubscribe(int connectionId, int subscriptionId) {
-        //Remove from both maps, returns channel name
-        ConcurrentHashMap<Integer, String> mySubscriptions = connectionSubscriptions.get(connectionId);
+        //Remove from both indexes, returns channel name
+        ConnectionSubscriptions mySubscriptions = subscriptionsOf(connectionId);
         if (mySubscriptions == null) //nothing to unsub from
             return null;
-        
-        String channel = mySubscriptions.remove(subscriptionId); 
-        if (channel == null) //not subscribing channel - nothing to unsub from
+
+        synchronized (mySubscriptions) {
+            Channel channel = channels.get(mySubscriptions.remove(subscriptionId));
+            if (channel == null) //not subscribing channel - nothing to unsub from
+                return null;
+
+            unsubscribeChannel(connectionId, mySubscriptions, channel);
+            return channel.getName();
+        }
+    }
+
+    /**
+     * @return the current subscribers of the channel, empty if there are none
+     */
+    public Subscribers getChannelSubscribers(String channel) {
+        Channel currentChannel = channels.get(channel);
+        return currentChannel == null ? Subscribers.EMPTY : currentChannel.getSubscribers();
+    }
+
+    /**
+     * Finds the channel among the connection's own subscriptions, without hashing the name
+     * @param nameMatches tests the UTF-8 bytes of a channel name
+     * @return the subscribed channel, or null if the connection isn't subscribed to it
+     */
+    public Channel findSubscribedChannel(int connectionId, Predicate<byte[]> nameMatches) {
+        ConnectionSubscriptions mySubscriptions = subscriptionsOf(connectionId);
+        if (mySubscriptions == null)
             return null;
 
-        channelSubscribers.get(channel).remove(connectionId);
-        
-        return channel;
+        synchronized (mySubscriptions) {
+            for (int i = 0; i < mySubscriptions.size; i++) {
+                Channel channel = channels.get(mySubscriptions.channelIds[i]);
+                if (channel != null && nameMatches.test(channel.nameBytes()))
+                    return channel;
+            }
+        }
+        return null;
     }
 
-    public Map<Integer,Integer> getChannelSubscribers(String channel) {
+    public boolean isSubscribed(int connectionId, String channel) {
         if (channel == null)
             throw new IllegalArgumentException("Channel is null!");
-        
-        return channelSubscribers.get(channel);
+
+        ConnectionSubscriptions mySubscriptions = subscriptionsOf(connectionId);
+        if (mySubscriptions == null)
+            return false;
+        synchronized (mySubscriptions) {
+            return findChannel(mySubscriptions, channel) != null;
+        }
+    }
+
+
+    // ================ Helper Methods ================
+    //subscriptionsOf - null if the connection is gone
+    private ConnectionSubscriptions subscriptionsOf(int connectionId) {
+        Connection<T> thisConnection = connections.get(connectionId);
+        return thisConnection == null ? null : thisConnection.subscriptions;
+    }
+
+    //findChannel - the channel with this name among the connection's subscriptions
+    private Channel findChannel(ConnectionSubscriptions mySubscriptions, String name) {
+        for (int i = 0; i < mySubscriptions.size; i++) {
+            Channel channel = channels.get(mySubscriptions.channelIds[i]);
+            if (channel != null && channel.getName().equals(name))
+                return channel;
+        }
+        return null;
     }
 
+    //unsubscribeChannel - the channel keeps the connection while another of its subscriptions points there
+    private void unsubscribeChannel(int connectionId, ConnectionSubscriptions mySubscriptions, Channel channel) {
+        int remainingSubId = mySubscriptions.subscriptionIdOf(channel.getId());
+        if (remainingSubId == NOT_SUBSCRIBED) {
+            channels.unsubscribe(channel, connectionId);
+        } else {
+            channel.put(connectionId, remainingSubId, false);
+        }
+    }
+
+
+    // ================ Nested Classes ================
+    /**
+     * Resumes a paused publisher once, when the recipient drains or the pause times out
+     */
+    private static final class ReadResume extends HashedWheelTimer.Task implements Runnable {
+        private final ConnectionHandler<?> publisher;
+        private final AtomicBoolean done = new AtomicBoolean(false);
+
+        ReadResume(ConnectionHandler<?> publisher) {
+            this.publisher = publisher;
+        }
+
+        @Override
+        public void run() {
+            if (done.compareAndSet(false, true)) {
+                publisher.resumeReading();
+            }
+        }
+
+        @Override
+        protected long expire(long nowMillis) {
+            run();
+            return -1;
+        }
+    }
+
+    private static final class Connection<T> {
+        private final ConnectionHandler<T> handler;
+        private final Heartbeat heartbeat;
+        private final ConnectionSubscriptions subscriptions = new ConnectionSubscriptions();
+
+        Connection(ConnectionHandler<T> handler, Heartbeat heartbeat) {
+            this.handler = handler;
+            this.heartbeat = heartbeat;
+        }
+    }
+
+    /**
+     * The subscriptions of one connection, a handful of (subId, channelId) entries in parallel arrays.
+     * Callers synchronize on the instance.
+     */
+    private static final class ConnectionSubscriptions {
+        private int[] subscriptionIds = new int[4];
+        private int[] channelIds = new int[4];
+        private int size = 0;
+
+        void put(int subscriptionId, int channelId) {
+            for (int i = 0; i < size; i++) {
+                if (subscriptionIds[i] == subscriptionId) {
+                    channelIds[i] = channelId;
+                    return;
+                }
+            }
+            if (size == subscriptionIds.length) {
+                subscriptionIds = Arrays.copyOf(subscriptionIds, size * 2);
+                channelIds = Arrays.copyOf(channelIds, size * 2);
+            }
+            subscriptionIds[size] = subscriptionId;
+            channelIds[size] = channelId;
+            size++;
+        }
+
+        //remove - returns the channel id, NO_CHANNEL if the subscription doesn't exist
+        int remove(int subscriptionId) {
+            for (int i = 0; i < size; i++) {
+                if (subscriptionIds[i] == subscriptionId) {
+                    int channelId = channelIds[i];
+                    size--;
+                    subscriptionIds[i] = subscriptionIds[size];
+                    channelIds[i] = channelIds[size];
+                    return channelId;
+                }
+            }
+            return NO_CHANNEL;
+        }
+
+        int channelIdOf(int subscriptionId) {
+            for (int i = 0; i < size; i++) {
+                if (subscriptionIds[i] == subscriptionId)
+                    return channelIds[i];
+            }
+            return NO_CHANNEL;
+        }
+
+        //subscriptionIdOf - NOT_SUBSCRIBED when no subscription points to the channel
+        int subscriptionIdOf(int channelId) {
+            for (int i = 0; i < size; i++) {
+                if (channelIds[i] == channelId)
+                    return subscriptionIds[i];
+            }
+            return NOT_SUBSCRIBED;
+        }
+
+        //clear - returns the subscribed channel ids
+        int[] clear() {
+            int[] subscribed = Arrays.copyOf(channelIds, size);
+            size = 0;
+            return subscribed;
+        }
+    }
 }
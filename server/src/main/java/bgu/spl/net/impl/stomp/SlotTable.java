@@ -0,0 +1,121 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A fixed size table of values addressed by generation-tagged ids.
+ * An id is (generation << slotBits) | slot, with just enough slot bits for the capacity so the
+ * generation gets the rest. A freed slot is reused with the next generation,
+ * so a lookup is an array index plus an id check, and stale ids of removed values miss.
+ * Freed slots are reused in FIFO order, so a slot cycles through all its generations only after
+ * the whole free list did - a stale id would have to be held that long to match again.
+ * Ids are always positive.
+ */
+public class SlotTable<E> {
+    // ================ Fields ================
+    public static final int MAX_CAPACITY = 1 << 24; //leaves at least 7 bits of generation
+
+    private final int slotBits;
+    private final int slotMask;
+    private final int maxGeneration;
+    private final AtomicReferenceArray<Entry<E>> slots;
+    private final int[] generations; //guarded by freeLock, the generation the slot was last handed out with
+    private final int[] freeSlots; //guarded by freeLock, a ring of freed slots
+    private int freeHead = 0;
+    private int freeCount = 0;
+    private int neverUsed = 0; //slots from here on were never handed out
+    private final Object freeLock = new Object();
+
+
+    // ================ Constructors ================
+    public SlotTable(int capacity) {
+        if (capacity < 1 || capacity > MAX_CAPACITY)
+            throw new IllegalArgumentException("Capacity must be between 1 and " + MAX_CAPACITY + "!");
+
+        slotBits = Math.max(1, 32 - Integer.numberOfLeadingZeros(capacity - 1));
+        slotMask = (1 << slotBits) - 1;
+        maxGeneration = (1 << (31 - slotBits)) - 1;
+        slots = new AtomicReferenceArray<>(capacity);
+        generations = new int[capacity];
+        freeSlots = new int[capacity];
+    }
+
+
+    // ================ Methods ================
+    /**
+     * @return the id of the value
+     * @throws IllegalStateException if all slots are taken
+     */
+    public int add(E value) {
+        if (value == null)
+            throw new IllegalArgumentException("Value is null!");
+
+        int id;
+        synchronized (freeLock) {
+            int slot;
+            if (freeCount > 0) {
+                slot = freeSlots[freeHead];
+                freeHead = (freeHead + 1) % freeSlots.length;
+                freeCount--;
+            } else if (neverUsed < slots.length()) {
+                slot = neverUsed++;
+            } else {
+                throw new IllegalStateException("No free slots!");
+            }
+            int generation = generations[slot] % maxGeneration + 1; //never 0, so ids are never 0
+            generations[slot] = generation;
+            id = (generation << slotBits) | slot;
+        }
+        slots.set(id & slotMask, new Entry<>(id, value));
+        return id;
+    }
+
+    /**
+     * @return the value, or null if the id is stale or unknown
+     */
+    public E get(int id) {
+        Entry<E> entry = entry(id);
+        return entry == null ? null : entry.value;
+    }
+
+    /**
+     * Removes the value and frees its slot, only the first remove of an id succeeds
+     * @return the removed value, or null if the id is stale or unknown
+     */
+    public E remove(int id) {
+        Entry<E> entry = entry(id);
+        if (entry == null || !slots.compareAndSet(id & slotMask, entry, null))
+            return null;
+
+        synchronized (freeLock) {
+            freeSlots[(freeHead + freeCount) % freeSlots.length] = id & slotMask;
+            freeCount++;
+        }
+        return entry.value;
+    }
+
+    public int capacity() {
+        return slots.length();
+    }
+
+
+    // ================ Helper Methods ================
+    private Entry<E> entry(int id) {
+        int slot = id & slotMask;
+        if (id <= 0 || slot >= slots.length())
+            return null;
+
+        Entry<E> entry = slots.get(slot);
+        return entry != null && entry.id == id ? entry : null;
+    }
+
+    private static final class Entry<E> {
+        private final int id;
+        private final E value;
+
+        Entry(int id, E value) {
+            this.id = id;
+            this.value = value;
+        }
+    }
+}
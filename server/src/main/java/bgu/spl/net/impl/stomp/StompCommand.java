@@ -0,0 +1,40 @@
+package bgu.spl.net.impl.stomp;
+
+import java.nio.charset.StandardCharsets;
+
+public enum StompCommand {
+    CONNECT, STOMP, CONNECTED, SEND, SUBSCRIBE, UNSUBSCRIBE, ACK, NACK, BEGIN, COMMIT, ABORT,
+    DISCONNECT, MESSAGE, RECEIPT, ERROR, UNKNOWN;
+
+    private static final StompCommand[] KNOWN = values();
+    private final byte[] name = name().getBytes(StandardCharsets.US_ASCII);
+
+    /**
+     * Matches the command line of a frame without allocating a String for it
+     * @param buf buffer holding the frame
+     * @param start index of the first byte of the command
+     * @param end index after the last byte of the command
+     * @return the matching command, or UNKNOWN
+     */
+    public static StompCommand fromBytes(byte[] buf, int start, int end) {
+        int length = end - start;
+        for (StompCommand command : KNOWN) {
+            byte[] candidate = command.name;
+            if (command == UNKNOWN || candidate.length != length)
+                continue;
+            int i = 0;
+            while (i < length && candidate[i] == buf[start + i])
+                i++;
+            if (i == length)
+                return command;
+        }
+        return UNKNOWN;
+    }
+
+    /**
+     * @return the command as it is written on the wire
+     */
+    public byte[] bytes() {
+        return name;
+    }
+}
@@ -1,18 +1,23 @@
 package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.api.MessageEncoderDecoder;
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
-public class StompEncoderDecoderImpl implements MessageEncoderDecoder<String> {
+public class StompEncoderDecoderImpl implements MessageEncoderDecoder<StompFrame> {
 
     private byte[] bytes = new byte[1 << 10]; //start with 1k
     private int len = 0;
+    private int consumed = 0; //leading bytes of a frame decodeUntil stopped at, dropped on the next call
+    private final StompFrame frame = new StompFrame(); //reused for every decoded frame
 
     @Override
-    public String decodeNextByte(byte nextByte) {
+    public StompFrame decodeNextByte(byte nextByte) {
+        dropConsumed();
         if (nextByte == '\0') {
-            return popString();
+            return popFrame();
         }
 
         pushByte(nextByte);
@@ -20,8 +25,69 @@ public class StompEncoderDecoderImpl implements MessageEncoderDecoder<String> {
     }
 
     @Override
-    public byte[] encode(String message) {
-        return (message + "\0").getBytes(); //uses utf8 by default
+    public void decode(ByteBuffer in, Consumer<StompFrame> out) {
+        decodeUntil(in, frame -> {
+            out.accept(frame);
+            return true;
+        });
+    }
+
+    @Override
+    public StompFrame decodeUntil(ByteBuffer in, Predicate<StompFrame> out) {
+        dropConsumed();
+        int incoming = in.remaining();
+        if (len + incoming > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(len + incoming, len * 2));
+        }
+        int scanFrom = len;
+        in.get(bytes, len, incoming); //one bulk copy, then scan for terminators in place
+        len += incoming;
+
+        int frameStart = 0;
+        for (int i = scanFrom; i < len; i++) {
+            if (bytes[i] == '\0') {
+                StompFrame parsed = frame.parse(bytes, frameStart, i);
+                if (!out.test(parsed)) {
+                    in.position(in.position() - (len - i - 1)); //give back what follows the frame
+                    len = i + 1;
+                    consumed = len; //the frame is a view over bytes, keep them until the next call
+                    return parsed;
+                }
+                frameStart = i + 1;
+            }
+        }
+        while (frameStart < len && (bytes[frameStart] == '\n' || bytes[frameStart] == '\r')) {
+            frameStart++; //heart-beats between frames, don't let an idle client grow the buffer
+        }
+
+        if (frameStart > 0) { //keep only the partial frame, at the start of the buffer
+            System.arraycopy(bytes, frameStart, bytes, 0, len - frameStart);
+            len -= frameStart;
+        }
+        return null;
+    }
+
+    @Override
+    public byte[] encode(StompFrame message) {
+        return message.toBytes();
+    }
+
+    @Override
+    public ByteBuffer[] encodeBuffers(StompFrame message) {
+        return message.toBuffers(); //a shared MESSAGE tail is written as is, not copied
+    }
+
+    @Override
+    public void release(StompFrame message) {
+        message.release();
+    }
+
+    private void dropConsumed() {
+        if (consumed > 0) {
+            System.arraycopy(bytes, consumed, bytes, 0, len - consumed);
+            len -= consumed;
+            consumed = 0;
+        }
     }
 
     private void pushByte(byte nextByte) {
@@ -32,9 +98,9 @@ public class StompEncoderDecoderImpl implements MessageEncoderDecoder<String> {
         bytes[len++] = nextByte;
     }
 
-    private String popString() {
-        String result = new String(bytes, 0, len, StandardCharsets.UTF_8);
+    private StompFrame popFrame() {
+        frame.parse(bytes, 0, len); //the frame is a view over bytes, valid until the next byte is pushed
         len = 0;
-        return result;
+        return frame;
     }
 }
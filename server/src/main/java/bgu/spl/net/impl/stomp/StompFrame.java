@@ -0,0 +1,338 @@
+package bgu.spl.net.impl.stomp;
+
+import bgu.spl.net.api.SharedBuffer;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A STOMP frame parsed in place over a byte buffer.
+ * Headers and body are kept as offset/length views into the buffer, Strings are only created
+ * when a header value or the body is asked for.
+ * A decoded frame is reused by its decoder, so it is only valid until the next frame is decoded.
+ * An outbound frame may end with a shared tail (the same headers and body sent to many
+ * subscribers), in that case it holds a reference to the tail until it is released.
+ */
+public class StompFrame {
+    // ================ Fields ================
+    private StompCommand command;
+    private byte[] buf;
+    private int frameStart;
+    private int frameEnd;
+    private int[] headers; //keyStart, keyEnd, valueStart, valueEnd per header
+    private int headerCount;
+    private int bodyStart;
+    private SharedBuffer tail;
+
+
+    // ================ Constructors ================
+    public StompFrame() {
+        command = StompCommand.UNKNOWN;
+        buf = new byte[0];
+        headers = new int[4 * 8];
+    }
+
+
+    // ================ Factory Methods ================
+    /**
+     * Builds an outbound frame, already serialized with its null terminator
+     * @param command the frame command
+     * @param body the frame body, or null for no body
+     * @param headers header names and values, alternating
+     */
+    public static StompFrame create(StompCommand command, String body, String... headers) {
+        byte[] bodyBytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+        return create(command, bodyBytes, 0, bodyBytes.length, headers);
+    }
+
+    /**
+     * Builds an outbound frame whose body is copied from the given slice
+     */
+    public static StompFrame create(StompCommand command, byte[] body, int bodyOffset, int bodyLength, String... headers) {
+        ByteArrayOutputStream out = writeHead(command, headers);
+        out.write('\n');
+        out.write(body, bodyOffset, bodyLength);
+        out.write('\0');
+
+        byte[] wire = out.toByteArray();
+        StompFrame frame = new StompFrame();
+        frame.parse(wire, 0, wire.length - 1);
+        return frame;
+    }
+
+    /**
+     * Builds an outbound frame made of its own command and headers followed by a shared tail.
+     * The frame takes over one reference to the tail.
+     * @param tail the rest of the frame, as built by encodeTail
+     * @param headers header names and values, alternating
+     */
+    public static StompFrame createWithTail(StompCommand command, SharedBuffer tail, String... headers) {
+        if (tail == null)
+            throw new IllegalArgumentException("Tail is null!");
+
+        ByteArrayOutputStream out = writeHead(command, headers);
+        byte[] head = out.toByteArray();
+        StompFrame frame = new StompFrame();
+        frame.parse(head, 0, head.length);
+        frame.tail = tail;
+        return frame;
+    }
+
+    /**
+     * Encodes the trailing headers, the blank line, the body and the null terminator once,
+     * so they can be shared by every frame created over them.
+     * @param body the body bytes, its position is left untouched
+     * @param headers header names and values, alternating
+     * @return the shared tail, holding one reference owned by the caller
+     */
+    public static SharedBuffer encodeTail(ByteBuffer body, String... headers) {
+        if (body == null)
+            throw new IllegalArgumentException("Body is null!");
+        if (headers.length % 2 != 0)
+            throw new IllegalArgumentException("Header without value!");
+
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < headers.length; i += 2) {
+            lines.append(headers[i]).append(':').append(headers[i + 1]).append('\n');
+        }
+        lines.append('\n');
+        ByteBuffer head = ByteBuffer.wrap(lines.toString().getBytes(StandardCharsets.UTF_8));
+        return SharedBuffer.copyOf(head, body, ByteBuffer.wrap(new byte[] { '\0' }));
+    }
+
+
+    // ================ Parsing ================
+    /**
+     * Parses the frame held in buf[start, end) (without its null terminator) into this object.
+     * No bytes are copied, the frame keeps referring to buf.
+     * @return this frame
+     */
+    public StompFrame parse(byte[] buf, int start, int end) {
+        if (buf == null)
+            throw new IllegalArgumentException("Buffer is null!");
+
+        this.buf = buf;
+        this.frameEnd = end;
+        this.headerCount = 0;
+
+        int pos = start;
+        while (pos < end && (buf[pos] == '\n' || buf[pos] == '\r')) //EOLs between frames (heart-beats)
+            pos++;
+        frameStart = pos;
+
+        int lineEnd = indexOf(buf, pos, end, (byte) '\n');
+        command = StompCommand.fromBytes(buf, pos, trimCR(buf, pos, lineEnd));
+        pos = lineEnd + 1;
+
+        while (pos < end) {
+            lineEnd = indexOf(buf, pos, end, (byte) '\n');
+            int contentEnd = trimCR(buf, pos, lineEnd);
+            if (contentEnd == pos) { //blank line - body follows
+                pos = lineEnd + 1;
+                break;
+            }
+            int separator = indexOf(buf, pos, contentEnd, (byte) ':');
+            if (separator < contentEnd) {
+                addHeader(pos, separator, separator + 1, contentEnd);
+            }
+            pos = lineEnd + 1;
+        }
+        bodyStart = Math.min(pos, end);
+        return this;
+    }
+
+
+    // ================ Getters ================
+    public StompCommand getCommand() {
+        return command;
+    }
+
+    /**
+     * @param name the header name
+     * @return the value of the first header with this name, or null if it's missing
+     */
+    public String getHeader(String name) {
+        int index = findHeader(name);
+        if (index < 0)
+            return null;
+
+        int valueStart = headers[index + 2];
+        return new String(buf, valueStart, headers[index + 3] - valueStart, StandardCharsets.UTF_8);
+    }
+
+    public boolean hasHeader(String name) {
+        return findHeader(name) >= 0;
+    }
+
+    /**
+     * Compares the value of the first header with this name to raw bytes, without decoding it
+     * @return false if the header is missing
+     */
+    public boolean headerEquals(String name, byte[] value) {
+        if (value == null)
+            throw new IllegalArgumentException("Value is null!");
+
+        int index = findHeader(name);
+        if (index < 0)
+            return false;
+
+        int valueStart = headers[index + 2];
+        if (headers[index + 3] - valueStart != value.length)
+            return false;
+        for (int i = 0; i < value.length; i++) {
+            if (buf[valueStart + i] != value[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return a view over the body bytes, sharing this frame's buffer
+     */
+    public ByteBuffer getBody() {
+        return ByteBuffer.wrap(buf, bodyStart, frameEnd - bodyStart).slice();
+    }
+
+    /**
+     * Finds a "name: value" line among the first lines of the body, without decoding the rest
+     * @param maxLines how many leading lines to look at
+     * @return the value of the first matching line, or null if none of them matches
+     */
+    public String getBodyField(String name, int maxLines) {
+        if (name == null)
+            throw new IllegalArgumentException("Field name is null!");
+
+        int lineStart = bodyStart;
+        for (int line = 0; line < maxLines && lineStart < frameEnd; line++) {
+            int lineEnd = lineStart;
+            while (lineEnd < frameEnd && buf[lineEnd] != '\n')
+                lineEnd++;
+            if (lineEnd - lineStart >= name.length() + 2 && buf[lineStart + name.length()] == ':'
+                    && buf[lineStart + name.length() + 1] == ' ') {
+                int i = 0;
+                while (i < name.length() && buf[lineStart + i] == (byte) name.charAt(i))
+                    i++;
+                if (i == name.length()) {
+                    int valueStart = lineStart + name.length() + 2;
+                    return new String(buf, valueStart, lineEnd - valueStart, StandardCharsets.UTF_8);
+                }
+            }
+            lineStart = lineEnd + 1;
+        }
+        return null;
+    }
+
+    public String getBodyAsString() {
+        return new String(buf, bodyStart, frameEnd - bodyStart, StandardCharsets.UTF_8);
+    }
+
+    public int getBodyLength() {
+        return frameEnd - bodyStart;
+    }
+
+    /**
+     * @return the frame serialized with its null terminator
+     */
+    public byte[] toBytes() {
+        if (tail != null) {
+            ByteBuffer rest = tail.view();
+            byte[] wire = Arrays.copyOfRange(buf, frameStart, frameEnd + rest.remaining());
+            rest.get(wire, frameEnd - frameStart, rest.remaining());
+            return wire;
+        }
+        if (frameStart == 0 && buf.length == frameEnd + 1 && buf[frameEnd] == '\0')
+            return buf; //outbound frames are built in their wire form
+
+        byte[] wire = Arrays.copyOfRange(buf, frameStart, frameEnd + 1);
+        wire[wire.length - 1] = '\0';
+        return wire;
+    }
+
+    /**
+     * @return the frame as buffers to write in order, a shared tail is not copied
+     */
+    public ByteBuffer[] toBuffers() {
+        if (tail == null)
+            return new ByteBuffer[] { ByteBuffer.wrap(toBytes()) };
+
+        return new ByteBuffer[] { ByteBuffer.wrap(buf, frameStart, frameEnd - frameStart), tail.view() };
+    }
+
+    /**
+     * Gives up this frame's reference to its shared tail, if it has one
+     */
+    public void release() {
+        SharedBuffer released = tail;
+        tail = null;
+        if (released != null) {
+            released.release();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return new String(buf, frameStart, frameEnd - frameStart, StandardCharsets.UTF_8);
+    }
+
+
+    // ================ Helper Methods ================
+    private static ByteArrayOutputStream writeHead(StompCommand command, String[] headers) {
+        if (command == null)
+            throw new IllegalArgumentException("Command is null!");
+        if (headers.length % 2 != 0)
+            throw new IllegalArgumentException("Header without value!");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(128);
+        byte[] commandBytes = command.bytes();
+        out.write(commandBytes, 0, commandBytes.length);
+        out.write('\n');
+        for (int i = 0; i < headers.length; i += 2) {
+            byte[] line = (headers[i] + ":" + headers[i + 1] + "\n").getBytes(StandardCharsets.UTF_8);
+            out.write(line, 0, line.length);
+        }
+        return out;
+    }
+
+    private void addHeader(int keyStart, int keyEnd, int valueStart, int valueEnd) {
+        int index = headerCount * 4;
+        if (index + 4 > headers.length) {
+            headers = Arrays.copyOf(headers, headers.length * 2);
+        }
+        headers[index] = keyStart;
+        headers[index + 1] = keyEnd;
+        headers[index + 2] = valueStart;
+        headers[index + 3] = valueEnd;
+        headerCount++;
+    }
+
+    private int findHeader(String name) {
+        if (name == null)
+            throw new IllegalArgumentException("Header name is null!");
+
+        for (int index = 0; index < headerCount * 4; index += 4) {
+            int keyStart = headers[index];
+            if (headers[index + 1] - keyStart != name.length())
+                continue;
+            int i = 0;
+            while (i < name.length() && buf[keyStart + i] == (byte) name.charAt(i))
+                i++;
+            if (i == name.length())
+                return index;
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] buf, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == value)
+                return i;
+        }
+        return to;
+    }
+
+    private static int trimCR(byte[] buf, int lineStart, int lineEnd) {
+        return (lineEnd > lineStart && buf[lineEnd - 1] == '\r') ? lineEnd - 1 : lineEnd;
+    }
+}
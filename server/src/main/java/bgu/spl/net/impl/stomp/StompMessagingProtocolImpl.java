@@ -1,20 +1,21 @@
 package bgu.spl.net.impl.stomp;
 
-import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import bgu.spl.net.api.SharedBuffer;
 import bgu.spl.net.api.StompMessagingProtocol;
 import bgu.spl.net.srv.Connections;
 import bgu.spl.net.impl.data.Database;
 import bgu.spl.net.impl.data.LoginStatus;
 
 
-public class StompMessagingProtocolImpl implements StompMessagingProtocol<String> {
+public class StompMessagingProtocolImpl implements StompMessagingProtocol<StompFrame> {
     // ================ Fields ================
+    private static final int REPORT_HEADER_LINES = 8; //body lines searched for the report's user and source
+    private static final long HEARTBEAT_MILLIS = Long.getLong("stomp.heartbeatMillis", 10000L); //both directions, 0 - none
     private int connectionId;
-    private ConnectionsImpl<String> connections;
+    private ConnectionsImpl<StompFrame> connections;
     private boolean shouldTerminate;
     private String username;
     private static AtomicInteger messageIdCounter = new AtomicInteger(1);
@@ -29,41 +30,37 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
 
     // ================ Interface Methods ================
     @Override
-    public void start(int connectionId, Connections<String> connections) {
+    public void start(int connectionId, Connections<StompFrame> connections) {
         if (connections == null)
             throw new IllegalArgumentException("Connections is null!");
         
         this.connectionId = connectionId;
-        this.connections = (ConnectionsImpl<String>) connections;
+        this.connections = (ConnectionsImpl<StompFrame>) connections;
     }
     
     @Override
-    public void process(String message) {
+    public void process(StompFrame message) {
         if (message == null)
             throw new IllegalArgumentException("Message is null!");
-        
-        String command = extractCommand(message);
-        Map<String,String> headers = extractHeaders(message);
-        String body = extractBody(message);
 
-        switch (command) {
-            case "CONNECT":
-                handleConnect(headers);
+        switch (message.getCommand()) {
+            case CONNECT:
+                handleConnect(message);
                 break;
-            case "DISCONNECT":
-                handleDisconnect(headers);
+            case DISCONNECT:
+                handleDisconnect(message);
                 break;
-            case "SUBSCRIBE":
-                handleSubscribe(headers);
+            case SUBSCRIBE:
+                handleSubscribe(message);
                 break;
-            case "UNSUBSCRIBE":
-                handleUnsubscribe(headers);
+            case UNSUBSCRIBE:
+                handleUnsubscribe(message);
                 break;
-            case "SEND":
-                handleSend(headers, body);
+            case SEND:
+                handleSend(message);
                 break;
             default:
-                String receiptId = headers.get("receipt");
+                String receiptId = message.getHeader("receipt");
                 connections.send(connectionId, buildErrorFrame("Unknown command", receiptId));
                 shouldTerminate = true;
         }
@@ -73,117 +70,98 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     public boolean shouldTerminate() {
         return shouldTerminate;
     }
-    
 
-    // ================ Helper Methods ================
-    // ========== Frame-Parsing Methods ==========
-    //extractCommand
-    private String extractCommand(String frame) {
-        if (frame == null)
-            throw new IllegalArgumentException("Frame is null!");
-        
-        return frame.substring(0, frame.indexOf('\n'));
+    @Override
+    public void connectionClosed() {
+        connections.disconnect(connectionId); //no-op if already disconnected
+        Database.getInstance().logout(connectionId); //no-op if not logged in
     }
 
-    //extractHeaderes
-    private Map<String,String> extractHeaders(String frame) {
-        if (frame == null)
-            throw new IllegalArgumentException("Frame is null!");
-        
-        Map<String,String> headersAndValues = new HashMap<>();
-        
-        String[] lines = frame.split("\n");
-        int i = 1;
-        String currentLine = lines[i];
-        while (i < lines.length && !currentLine.isEmpty()) {
-            int separatorIndex  = currentLine.indexOf(':');
-            
-            String header = currentLine.substring(0, separatorIndex );
-            String value = currentLine.substring(separatorIndex + 1);
-
-            headersAndValues.put(header, value);
-            i++;
-            if (i < lines.length) {
-                currentLine = lines[i];
-            } else {
-                break;
-            }
-            
-        }
-        return headersAndValues;
+    @Override
+    public Object conflationKey(StompFrame message) {
+        if (message.getCommand() != StompCommand.MESSAGE)
+            return null; //receipts and errors are never dropped
+        return message.getHeader("subscription"); //one channel per subscription of a connection
     }
 
-    //extractBody
-    private String extractBody(String frame) {
-        if (frame == null)
-            throw new IllegalArgumentException("Frame is null!");
+    @Override
+    public StompFrame slowConsumerError() {
+        return buildErrorFrame("Slow consumer, too many messages waiting to be sent", null);
+    }
 
-        String[] lines = frame.split("\n");
-        int blankLineIndex = 0;
-        for (int i = 1 ; i < lines.length ; i++) {
-            String currentLine = lines[i];
-            if (currentLine.isEmpty()) {
-                blankLineIndex = i;
-                break;
-            }
+    @Override
+    public boolean isInlineSafe(StompFrame message) {
+        switch (message.getCommand()) { //only in-memory work, CONNECT/SEND/DISCONNECT reach the database
+            case SUBSCRIBE:
+            case UNSUBSCRIBE:
+                return true;
+            default:
+                return false;
         }
-        String[] lineOfBody = Arrays.copyOfRange(lines, blankLineIndex + 1, lines.length);
-
-        String body = String.join("\n", lineOfBody);
-        return body;   
     }
+    
 
-
+    // ================ Helper Methods ================
     // ========== Frame-Response Methods ==========
     //buildConnectedFrame
-    private String buildConnectedFrame() {
-        return "CONNECTED\nversion:1.2\n\n";
+    private StompFrame buildConnectedFrame(boolean heartBeating) {
+        if (heartBeating) {
+            return StompFrame.create(StompCommand.CONNECTED, null, "version", "1.2",
+                    "heart-beat", HEARTBEAT_MILLIS + "," + HEARTBEAT_MILLIS);
+        }
+        return StompFrame.create(StompCommand.CONNECTED, null, "version", "1.2");
     }
 
     //buildReceiptFrame
-    private String buildReceiptFrame(String receiptId) {
+    private StompFrame buildReceiptFrame(String receiptId) {
         if (receiptId == null)
             throw new IllegalArgumentException("Receipt Id is null!");
 
-        return "RECEIPT\nreceipt-id:" + receiptId + "\n\n";
+        return StompFrame.create(StompCommand.RECEIPT, null, "receipt-id", receiptId);
     }
 
     //buildErrorFrame
-    private String buildErrorFrame(String description, String receiptId) {
+    private StompFrame buildErrorFrame(String description, String receiptId) {
         if (description == null)
             throw new IllegalArgumentException("Message is null!");
         //allowing receiptId to be null since not all error messages will have ids
 
-        String errorFrame = "ERROR\n";
         if (receiptId != null) {
-            errorFrame += "receipt-id:" + receiptId + "\n";
+            return StompFrame.create(StompCommand.ERROR, null, "receipt-id", receiptId, "message", description);
         }
-        errorFrame += "message:" + description + "\n\n";
-
-        return errorFrame;
+        return StompFrame.create(StompCommand.ERROR, null, "message", description);
     }
 
-    //buildMessageFrame
-    private String buildMessageFrame(String dest, int subId, int msgId, String body) {
+    //buildMessageTail - destination header and body, encoded once for all subscribers
+    private SharedBuffer buildMessageTail(String dest, ByteBuffer body) {
         if (dest == null)
             throw new IllegalArgumentException("Destination is null!");
         if (body == null)
             throw new IllegalArgumentException("Message is null!");
 
-        return "MESSAGE\n" + "subscription:" + subId + "\nmessage-id:" + msgId +
-               "\ndestination:" + dest + "\n\n" + body;
+        return StompFrame.encodeTail(body, "destination", dest);
+    }
+
+    //buildMessageFrame - per subscriber headers in front of a shared tail
+    private StompFrame buildMessageFrame(int subId, int msgId, SharedBuffer tail) {
+        if (tail == null)
+            throw new IllegalArgumentException("Message is null!");
+
+        return StompFrame.createWithTail(StompCommand.MESSAGE, tail.retain(),
+                "subscription", String.valueOf(subId), "message-id", String.valueOf(msgId));
     }
 
 
     // ========== Handler Methods ==========
     //handleConnect
-    private void handleConnect(Map<String,String> headers) {
-        if (headers == null)
-            throw new IllegalArgumentException("Headers is null!");
+    private void handleConnect(StompFrame frame) {
+        if (frame == null)
+            throw new IllegalArgumentException("Frame is null!");
         
-        String username = headers.get("login");
-        String password = headers.get("passcode");
-        String receiptId = headers.get("receipt");
+        String username = frame.getHeader("login");
+        String password = frame.getHeader("passcode");
+        String receiptId = frame.getHeader("receipt");
+        String heartBeat = frame.getHeader("heart-beat");
 
         if (username == null || password == null) {
             connections.send(connectionId, buildErrorFrame("Missing login or passcode", receiptId));
@@ -201,7 +179,8 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
             case ADDED_NEW_USER:
             case LOGGED_IN_SUCCESSFULLY:
                 this.username = username;
-                connections.send(connectionId, buildConnectedFrame());
+                connections.send(connectionId, buildConnectedFrame(heartBeat != null));
+                negotiateHeartbeat(heartBeat);
                 break;
             case WRONG_PASSWORD:
                 connections.send(connectionId, buildErrorFrame("User exists, wrong password",receiptId));
@@ -215,6 +194,10 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
                 connections.send(connectionId,  buildErrorFrame("This connectionId already logged in", receiptId));
                 shouldTerminate = true;
                 break;
+            case USERS_UNAVAILABLE:
+                connections.send(connectionId, buildErrorFrame("Users can't be looked up right now, try again later", receiptId));
+                shouldTerminate = true;
+                break;
             default:
                 shouldTerminate = true;
                 throw new IllegalStateException("Something unexpected happend");
@@ -222,13 +205,13 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     }
 
     //handleSubscribe
-    private void handleSubscribe(Map<String,String> headers) {
-        if (headers == null)
-            throw new IllegalArgumentException("Headers is null!");
+    private void handleSubscribe(StompFrame frame) {
+        if (frame == null)
+            throw new IllegalArgumentException("Frame is null!");
     
-        String destination = headers.get("destination");
-        String subscriptionId = headers.get("id");
-        String receiptId = headers.get("receipt");
+        String destination = frame.getHeader("destination");
+        String subscriptionId = frame.getHeader("id");
+        String receiptId = frame.getHeader("receipt");
 
         if (destination == null) {
             connections.send(connectionId, buildErrorFrame("No destination!", receiptId));
@@ -254,12 +237,12 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     }
 
     //handleUnsubscribe
-    private void handleUnsubscribe(Map<String,String> headers) {
-        if (headers == null)
-            throw new IllegalArgumentException("Headers is null!");
+    private void handleUnsubscribe(StompFrame frame) {
+        if (frame == null)
+            throw new IllegalArgumentException("Frame is null!");
         
-        String subscriptionId = headers.get("id");
-        String receiptId = headers.get("receipt");
+        String subscriptionId = frame.getHeader("id");
+        String receiptId = frame.getHeader("receipt");
         
         if (username == null) {
             connections.send(connectionId, buildErrorFrame("Username isn't logged-in!", receiptId));
@@ -286,53 +269,52 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
     }
 
     //handleSend
-    private void handleSend(Map<String,String> headers, String body) {
-        if (headers == null)
-            throw new IllegalArgumentException("Headers is null!");
-        if (body == null)
-            throw new IllegalArgumentException("Message-body is null!");
+    private void handleSend(StompFrame frame) {
+        if (frame == null)
+            throw new IllegalArgumentException("Frame is null!");
         
-        String destination = headers.get("destination");
-        String receiptId = headers.get("receipt");
+        String receiptId = frame.getHeader("receipt");
 
         if (username == null) {
             connections.send(connectionId, buildErrorFrame("Username isn't logged-in!", receiptId));
             shouldTerminate = true;
             return;
         }
-        if (destination == null) {
+        if (!frame.hasHeader("destination")) {
             connections.send(connectionId, buildErrorFrame("No destination!", receiptId));
             shouldTerminate = true;
             return;
         }
 
-        Map<Integer,Integer> subs = connections.getChannelSubscribers(destination);
-
-        if (subs == null || subs.get(connectionId) == null) { //no subscribers to send to (neither you client is subbed)
+        //matched against the raw header bytes of my own channels, the destination is never hashed
+        Channel channel = connections.findSubscribedChannel(connectionId, name -> frame.headerEquals("destination", name));
+        if (channel == null) { //no subscribers to send to (neither you client is subbed)
             connections.send(connectionId, buildErrorFrame("You arent subbed to channel!", receiptId));
             shouldTerminate = true;
             return; 
         }
         
-        for (Integer connId : subs.keySet()) {
-            int subId = subs.get(connId);
-            int msgId = messageIdCounter.getAndIncrement();
-            String message = buildMessageFrame(destination, subId, msgId, body);
-
-            connections.send(connId, message);
-        }
-
-        // Extract user and source from body for file tracking
-        String reportUser = null;
-        String sourceFile = null;
-        String[] bodyLines = body.split("\n");
-        for (String line : bodyLines) {
-            if (line.startsWith("user: ")) {
-                reportUser = line.substring(6);
-            } else if (line.startsWith("source: ")) {
-                sourceFile = line.substring(8);
+        String destination = channel.getName();
+        Subscribers subs = channel.getSubscribers();
+        SharedBuffer tail = buildMessageTail(destination, frame.getBody());
+        try {
+            for (int i = 0; i < subs.size(); i++) {
+                int connId = subs.connectionId(i);
+                int subId = subs.subscriptionId(i);
+                int msgId = messageIdCounter.getAndIncrement();
+                StompFrame message = buildMessageFrame(subId, msgId, tail);
+
+                if (!connections.publish(connectionId, connId, message)) {
+                    message.release(); //subscriber is gone, nobody else will release it
+                }
             }
+        } finally {
+            tail.release();
         }
+
+        // Extract user and source from body for file tracking, the client puts them first
+        String reportUser = frame.getBodyField("user", REPORT_HEADER_LINES);
+        String sourceFile = reportUser == null ? null : frame.getBodyField("source", REPORT_HEADER_LINES);
         if (reportUser != null && sourceFile != null) {
             Database.getInstance().trackFileUpload(reportUser, sourceFile, destination);
         }
@@ -342,12 +324,32 @@ public class StompMessagingProtocolImpl implements StompMessagingProtocol<String
         }
     }
 
+    //negotiateHeartbeat - the client's "cx,cy" against the server's own interval, as in STOMP 1.2
+    private void negotiateHeartbeat(String heartBeat) {
+        long clientSends = 0;
+        long clientExpects = 0;
+        if (heartBeat != null) {
+            int comma = heartBeat.indexOf(',');
+            try {
+                clientSends = Long.parseLong(heartBeat.substring(0, comma).trim());
+                clientExpects = Long.parseLong(heartBeat.substring(comma + 1).trim());
+            } catch (NumberFormatException | StringIndexOutOfBoundsException ex) {
+                clientSends = 0; //a malformed header means no heart-beating
+                clientExpects = 0;
+            }
+        }
+
+        long send = HEARTBEAT_MILLIS <= 0 || clientExpects <= 0 ? 0 : Math.max(HEARTBEAT_MILLIS, clientExpects);
+        long expect = HEARTBEAT_MILLIS <= 0 || clientSends <= 0 ? 0 : Math.max(HEARTBEAT_MILLIS, clientSends);
+        connections.configureHeartbeat(connectionId, send, expect);
+    }
+
     //handleDisconnect
-    private void handleDisconnect(Map<String,String> headers) {
-        if (headers == null)
-            throw new IllegalArgumentException("Headers is null!");
+    private void handleDisconnect(StompFrame frame) {
+        if (frame == null)
+            throw new IllegalArgumentException("Frame is null!");
 
-        String receiptId = headers.get("receipt");
+        String receiptId = frame.getHeader("receipt");
         
         if (receiptId != null) {
             connections.send(connectionId, buildReceiptFrame(receiptId));
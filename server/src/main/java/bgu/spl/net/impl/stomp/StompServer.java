@@ -1,6 +1,9 @@
 package bgu.spl.net.impl.stomp;
 
 import bgu.spl.net.impl.data.Database;
+import bgu.spl.net.srv.InlineExecutionPolicy;
+import bgu.spl.net.srv.LoopAssignment;
+import bgu.spl.net.srv.OutboundQueue;
 import bgu.spl.net.srv.Server;
 
 public class StompServer {
@@ -8,19 +11,47 @@ public class StompServer {
     public static void main(String[] args) {
         int port = Integer.valueOf(args[0]);
         String serverType = args[1];
-        ConnectionsImpl<String> connections = new ConnectionsImpl<>();
+        ConnectionsImpl<StompFrame> connections = new ConnectionsImpl<>();
+        InlineExecutionPolicy inlinePolicy = new InlineExecutionPolicy(
+            Boolean.parseBoolean(System.getProperty("stomp.inline", "false")),
+            Integer.getInteger("stomp.inlineMaxBytes", 512));
+
+        Database.getInstance(); //loads the report totals now, not in the first CONNECT
 
         Runtime.getRuntime().addShutdownHook(
-            new Thread(() -> { Database.getInstance().printReport(); }));
+            new Thread(() -> {
+                Database.getInstance().flush(Long.getLong("stomp.auditShutdownMillis", 10000L));
+                Database.getInstance().printReport();
+                Database.getInstance().printMetrics();
+                if (serverType.endsWith("reactor"))
+                    inlinePolicy.printReport();
+                OutboundQueue.printReport();
+            }));
 
         if (serverType.equals("tpc")) {
             Server.threadPerClient(port,
                 StompMessagingProtocolImpl::new,
                 StompEncoderDecoderImpl::new,
                 connections).serve();
+        } else if (serverType.equals("vtpc")) {
+            Server.virtualThreadPerClient(port,
+                StompMessagingProtocolImpl::new,
+                StompEncoderDecoderImpl::new,
+                connections).serve();
         } else if (serverType.equals("reactor")) {
             Server.reactor(
             Runtime.getRuntime().availableProcessors(),
+            inlinePolicy,
+            port,
+            StompMessagingProtocolImpl::new,
+            StompEncoderDecoderImpl::new,
+            connections).serve();
+        } else if (serverType.equals("multireactor")) {
+            Server.multiReactor(
+            Runtime.getRuntime().availableProcessors(),
+            Integer.getInteger("stomp.selectorLoops", Runtime.getRuntime().availableProcessors()),
+            LoopAssignment.valueOf(System.getProperty("stomp.loopAssignment", "ROUND_ROBIN")),
+            inlinePolicy,
             port,
             StompMessagingProtocolImpl::new,
             StompEncoderDecoderImpl::new,
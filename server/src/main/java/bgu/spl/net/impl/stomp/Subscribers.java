@@ -0,0 +1,87 @@
+package bgu.spl.net.impl.stomp;
+
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of a channel's subscribers, as two parallel int arrays.
+ * A channel publishes a new snapshot on every change, so readers loop over it without locking.
+ * Appending reuses the spare capacity of the arrays: the new entry lies beyond the size of
+ * every older snapshot, so they never see it.
+ */
+public final class Subscribers {
+    // ================ Fields ================
+    public static final Subscribers EMPTY = new Subscribers(new int[0], new int[0], 0);
+
+    private final int[] connectionIds;
+    private final int[] subscriptionIds;
+    private final int size;
+
+
+    // ================ Constructors ================
+    private Subscribers(int[] connectionIds, int[] subscriptionIds, int size) {
+        this.connectionIds = connectionIds;
+        this.subscriptionIds = subscriptionIds;
+        this.size = size;
+    }
+
+
+    // ================ Methods ================
+    public int size() {
+        return size;
+    }
+
+    public int connectionId(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("Subscriber index out of range!");
+        return connectionIds[index];
+    }
+
+    public int subscriptionId(int index) {
+        if (index >= size)
+            throw new IndexOutOfBoundsException("Subscriber index out of range!");
+        return subscriptionIds[index];
+    }
+
+    public int indexOf(int connectionId) {
+        for (int i = 0; i < size; i++) {
+            if (connectionIds[i] == connectionId)
+                return i;
+        }
+        return -1;
+    }
+
+    //with - only called on the newest snapshot of a channel, under the channel's lock
+    /*package*/ Subscribers with(int connectionId, int subscriptionId) {
+        int[] connIds = connectionIds;
+        int[] subIds = subscriptionIds;
+        if (size == connIds.length) {
+            int capacity = Math.max(4, size * 2);
+            connIds = Arrays.copyOf(connIds, capacity);
+            subIds = Arrays.copyOf(subIds, capacity);
+        }
+        connIds[size] = connectionId;
+        subIds[size] = subscriptionId;
+        return new Subscribers(connIds, subIds, size + 1);
+    }
+
+    //withSubscriptionId
+    /*package*/ Subscribers withSubscriptionId(int index, int subscriptionId) {
+        int[] subIds = Arrays.copyOf(subscriptionIds, connectionIds.length);
+        subIds[index] = subscriptionId;
+        return new Subscribers(connectionIds, subIds, size);
+    }
+
+    //without - copies, older snapshots may still be iterated
+    /*package*/ Subscribers without(int index) {
+        if (size == 1)
+            return EMPTY;
+
+        int[] connIds = new int[size - 1];
+        int[] subIds = new int[size - 1];
+        System.arraycopy(connectionIds, 0, connIds, 0, index);
+        System.arraycopy(subscriptionIds, 0, subIds, 0, index);
+        System.arraycopy(connectionIds, index + 1, connIds, index, size - index - 1);
+        System.arraycopy(subscriptionIds, index + 1, subIds, index, size - index - 1);
+        return new Subscribers(connIds, subIds, size - 1);
+    }
+}
@@ -6,6 +6,7 @@ import bgu.spl.net.impl.stomp.ConnectionsImpl;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
 import java.util.function.Supplier;
 
 public abstract class BaseServer<T> implements Server<T> {
@@ -16,17 +17,27 @@ public abstract class BaseServer<T> implements Server<T> {
     private ServerSocket sock;
     //additional fields:
     private ConnectionsImpl<T> connections;
+    private final ThreadFactory threads; //for the handlers' writers, and their readers if execute uses it
 
     public BaseServer(
             int port,
             Supplier<StompMessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> encdecFactory, ConnectionsImpl<T> connections) {
+        this(port, protocolFactory, encdecFactory, connections, Thread::new);
+    }
+
+    public BaseServer(
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encdecFactory, ConnectionsImpl<T> connections,
+            ThreadFactory threads) {
 
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.encdecFactory = encdecFactory;
 		this.sock = null;
         this.connections = connections;
+        this.threads = threads;
     }
 
     @Override
@@ -43,7 +54,8 @@ public abstract class BaseServer<T> implements Server<T> {
                         clientSock,
                         encdecFactory.get(),
                         protocolFactory.get(),
-                        connections);
+                        connections,
+                        threads);
 
                 execute(handler);
             }
@@ -61,4 +73,8 @@ public abstract class BaseServer<T> implements Server<T> {
 
     protected abstract void execute(BlockingConnectionHandler<T>  handler);
 
+    protected ThreadFactory threads() {
+        return threads;
+    }
+
 }
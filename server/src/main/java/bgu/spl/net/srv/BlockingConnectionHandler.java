@@ -4,69 +4,307 @@ import bgu.spl.net.api.MessageEncoderDecoder;
 import bgu.spl.net.api.StompMessagingProtocol;
 import bgu.spl.net.impl.stomp.ConnectionsImpl;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Thread per client: the connection's thread reads and processes, and a writer thread of its own
+ * writes what is sent to it. A send only queues, so a client fanning out a message never blocks
+ * on another client's socket; the writer flushes whatever queued up meanwhile in one batch.
+ * Waits use locks rather than monitors so a virtual thread waiting here doesn't pin its carrier.
+ */
 public class BlockingConnectionHandler<T> implements Runnable, ConnectionHandler<T> {
 
+    private static final int READ_CHUNK_SIZE = 1 << 13; //8k
+    private static final int MAX_WRITE_BATCH_BYTES = Integer.getInteger("stomp.writeBatchBytes", 1 << 16); //64k
+    private static final int MAX_WRITE_BATCH_BUFFERS = 1024;
+    private static final long WRITER_DRAIN_MILLIS = 5000; //how long a closing connection waits for its last writes
+    private static final ByteBuffer HEARTBEAT = ByteBuffer.wrap(new byte[] {'\n'}).asReadOnlyBuffer(); //an EOL
+
     private final StompMessagingProtocol<T> protocol; //changed to Stomp protocol
     private final MessageEncoderDecoder<T> encdec;
     private final Socket sock;
-    private BufferedInputStream in;
-    private BufferedOutputStream out;
+    private InputStream in;
+    private BufferedOutputStream out; //only used by the writer
     private volatile boolean connected = true;
+    private byte[] writeScratch = new byte[0]; //only used by the writer, for buffers without a backing array
+    private final OutboundQueue<T> outbound;
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Condition writeSignal = writeLock.newCondition();
+    private final AtomicBoolean writePending = new AtomicBoolean(false); //something was queued since the writer last looked
+    private volatile boolean readingDone = false; //the writer stops once the queue is empty
+    private final ThreadFactory writerThreads;
     //additional fields:
     private ConnectionsImpl<T> connections;
     private int connectionId;
+    private boolean registered = false;
+    private volatile Heartbeat heartbeat; //set once registered
+    private final ReentrantLock readPauseLock = new ReentrantLock();
+    private final Condition readResumed = readPauseLock.newCondition();
+    private int readPauses = 0; //guarded by readPauseLock, backpressure, the read loop waits while positive
 
     //added connections argument and intialization, adjusted argument to stomp protocol
     public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, StompMessagingProtocol<T> protocol, ConnectionsImpl<T> connections) {
+        this(sock, reader, protocol, connections, Thread::new);
+    }
+
+    /**
+     * @param writerThreads makes the connection's writer thread
+     */
+    public BlockingConnectionHandler(Socket sock, MessageEncoderDecoder<T> reader, StompMessagingProtocol<T> protocol,
+            ConnectionsImpl<T> connections, ThreadFactory writerThreads) {
         this.sock = sock;
+        this.writerThreads = writerThreads;
         this.encdec = reader;
         this.protocol = protocol;
         this.connections = connections;
+        this.outbound = new OutboundQueue<>(reader::release);
     }
 
     @Override
     public void run() {
         try (Socket sock = this.sock) { //just for automatic closing
             int read;
+            byte[] chunk = new byte[READ_CHUNK_SIZE];
+            ByteBuffer chunkBuffer = ByteBuffer.wrap(chunk);
 
-            in = new BufferedInputStream(sock.getInputStream());
-            out = new BufferedOutputStream(sock.getOutputStream());
+            in = sock.getInputStream(); //read in chunks already, no need for another buffer
+            out = new BufferedOutputStream(sock.getOutputStream(), MAX_WRITE_BATCH_BYTES);
             connectionId = connections.registerHandler(this); //registering handler in connections manager
+            registered = true;
+            heartbeat = connections.heartbeat(connectionId);
+            Thread writer = writerThreads.newThread(this::writeLoop);
+            writer.setName("writer-" + connectionId);
+            writer.start();
 
             protocol.start(connectionId, connections); //starting protocol
             
-            while (!protocol.shouldTerminate() && connected && (read = in.read()) >= 0) {
-                T nextMessage = encdec.decodeNextByte((byte) read);
-                if (nextMessage != null) {
-                    protocol.process(nextMessage); //process handles communication
-                }
+            while (!protocol.shouldTerminate() && awaitReadResumed() && (read = in.read(chunk)) >= 0) {
+                heartbeat.readActivity();
+                chunkBuffer.clear();
+                chunkBuffer.limit(read);
+                encdec.decode(chunkBuffer, nextMessage -> {
+                    if (!protocol.shouldTerminate()) {
+                        protocol.process(nextMessage); //process handles communication
+                    }
+                });
             }
-        } catch (IOException ex) {
+            finishWriting(writer);
+        } catch (IOException | IllegalStateException ex) { //IllegalStateException - connection limit reached
+            boolean closedOnPurpose = !connected; //e.g. by a heart-beat timeout
+            connected = false; //the writer may fail on the closed socket too, quietly
+            if (!closedOnPurpose) {
+                ex.printStackTrace();
+            }
+        } catch (RuntimeException ex) { //a frame the protocol failed on, the connection is dropped
+            connected = false;
             ex.printStackTrace();
+        } finally {
+            connected = false; //the writer stops
+            signalWriter();
+            outbound.close(); //sends that came too late
+            if (registered) {
+                connections.disconnect(connectionId); //frees the connection's slot, no-op after a DISCONNECT
+                protocol.connectionClosed();
+            }
         }
-
     }
 
     @Override
     public void close() throws IOException {
         connected = false;
+        readPauseLock.lock();
+        try {
+            readResumed.signalAll();
+        } finally {
+            readPauseLock.unlock();
+        }
+        signalWriter();
+        outbound.close();
         sock.close();
     }
 
+    @Override
+    public boolean isSaturated() {
+        return outbound.isSaturated();
+    }
+
+    @Override
+    public boolean whenDrained(Runnable resume) {
+        return outbound.whenDrained(resume);
+    }
+
+    @Override
+    public void pauseReading() {
+        readPauseLock.lock();
+        try {
+            readPauses++;
+        } finally {
+            readPauseLock.unlock();
+        }
+    }
+
+    @Override
+    public void resumeReading() {
+        readPauseLock.lock();
+        try {
+            if (--readPauses == 0) {
+                readResumed.signalAll();
+            }
+        } finally {
+            readPauseLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isReadPaused() {
+        readPauseLock.lock();
+        try {
+            return readPauses > 0;
+        } finally {
+            readPauseLock.unlock();
+        }
+    }
+
+    //awaitReadResumed - blocks the read loop while paused, false once the connection is closed
+    private boolean awaitReadResumed() {
+        readPauseLock.lock();
+        try {
+            while (readPauses > 0 && connected) {
+                readResumed.await();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            readPauseLock.unlock();
+        }
+        return connected;
+    }
+
     @Override
     public void send(T msg) {
+        enqueue(new EncodedMessage<>(msg, encdec.encodeBuffers(msg)), protocol.conflationKey(msg));
+        Heartbeat heartbeat = this.heartbeat;
+        if (heartbeat != null) {
+            heartbeat.writeActivity();
+        }
+    }
+
+    @Override
+    public void sendHeartbeat() {
+        enqueue(new EncodedMessage<>(null, new ByteBuffer[] {HEARTBEAT.duplicate()}), null);
+    }
+
+    private void enqueue(EncodedMessage<T> message, Object key) {
+        if (!outbound.offer(message, key)) { //a slow consumer, over the limits
+            T error = protocol.slowConsumerError();
+            if (error == null) {
+                closeQuietly();
+                return;
+            }
+            outbound.offerLast(new EncodedMessage<>(error, encdec.encodeBuffers(error))); //closed once written
+        }
+        signalWriter();
+    }
+
+    private void signalWriter() {
+        if (writePending.compareAndSet(false, true)) { //one wakeup per burst, until the writer looks again
+            wakeWriter();
+        }
+    }
+
+    private void wakeWriter() {
+        writeLock.lock();
         try {
-            synchronized (out) {
-                out.write(encdec.encode(msg));
-                out.flush();
+            writeSignal.signal();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    //writeLoop - the writer thread, flushes everything queued since its last batch at once
+    private void writeLoop() {
+        try {
+            while (awaitWrites()) {
+                while (!outbound.isEmpty() && connected) {
+                    outbound.gather(MAX_WRITE_BATCH_BYTES, MAX_WRITE_BATCH_BUFFERS);
+                    try {
+                        ByteBuffer[] batch = outbound.batch();
+                        for (int i = 0; i < outbound.batchCount(); i++) {
+                            write(batch[i]);
+                        }
+                        out.flush();
+                    } finally {
+                        outbound.written();
+                    }
+                }
+                if (outbound.isOverflowed() && outbound.isEmpty()) { //the slow consumer's ERROR is out
+                    closeQuietly();
+                }
             }
+        } catch (IOException ex) {
+            if (connected) {
+                ex.printStackTrace();
+                closeQuietly();
+            }
+        }
+    }
+
+    //awaitWrites - false once closed, or reading is done and everything was written
+    private boolean awaitWrites() {
+        writeLock.lock();
+        try {
+            while (!writePending.get() && connected && !(readingDone && outbound.isEmpty())) {
+                writeSignal.await();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            writeLock.unlock();
+        }
+        writePending.set(false); //sends from now on wake the writer again
+        return connected && !(readingDone && outbound.isEmpty());
+    }
+
+    //finishWriting - lets the writer send what the last frames queued, e.g. a RECEIPT for DISCONNECT
+    private void finishWriting(Thread writer) {
+        readingDone = true;
+        wakeWriter();
+        try {
+            writer.join(WRITER_DRAIN_MILLIS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
     }
+
+    private void write(ByteBuffer buffer) throws IOException {
+        int length = buffer.remaining();
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset() + buffer.position(), length);
+        } else {
+            if (writeScratch.length < length) {
+                writeScratch = new byte[length];
+            }
+            buffer.duplicate().get(writeScratch, 0, length); //shared buffers are read-only, copy out
+            out.write(writeScratch, 0, length);
+        }
+        buffer.position(buffer.limit()); //written, the queue drops messages with nothing remaining
+    }
 }
@@ -19,4 +19,39 @@ public interface ConnectionHandler<T> extends Closeable {
 
     void send(T msg);
 
+    /**
+     * Writes a heart-beat (an EOL) unless the connection is closed
+     */
+    default void sendHeartbeat() {
+    }
+
+    /**
+     * @return true while the messages waiting to be written are above the high-water mark
+     */
+    default boolean isSaturated() {
+        return false;
+    }
+
+    /**
+     * Runs resume once the messages waiting to be written drain to the low-water mark, or the
+     * connection closes
+     * @return false if it isn't saturated, resume won't be run
+     */
+    default boolean whenDrained(Runnable resume) {
+        return false;
+    }
+
+    /**
+     * Stops reading from the connection until every pause is matched by a resumeReading
+     */
+    default void pauseReading() {
+    }
+
+    default void resumeReading() {
+    }
+
+    default boolean isReadPaused() {
+        return false;
+    }
+
 }
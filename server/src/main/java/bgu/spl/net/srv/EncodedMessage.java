@@ -0,0 +1,42 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A message waiting to be written, together with the buffers it was encoded into.
+ * The message is kept so its shared buffers can be released once it's written or dropped.
+ */
+public class EncodedMessage<T> {
+
+    private final T message;
+    private final ByteBuffer[] buffers;
+
+    public EncodedMessage(T message, ByteBuffer[] buffers) {
+        this.message = message;
+        this.buffers = buffers;
+    }
+
+    public T message() {
+        return message;
+    }
+
+    public ByteBuffer[] buffers() {
+        return buffers;
+    }
+
+    public long remaining() {
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        return remaining;
+    }
+
+    public boolean hasRemaining() {
+        for (ByteBuffer buffer : buffers) {
+            if (buffer.hasRemaining())
+                return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,160 @@
+package bgu.spl.net.srv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel: a ring of buckets, one per tick, turned by a single timer thread.
+ * A task sits in the bucket of its deadline tick modulo the ring size, so scheduling and firing
+ * cost O(1) however many tasks are waiting, and only the current bucket is looked at per tick.
+ * Tasks are intrusive and reusable: a task is its own bucket entry and reschedules itself by
+ * returning its next delay, so a connection needs one task for its whole life rather than a
+ * timer object per timeout. Deadlines are rounded up to the tick, tasks run on the timer thread
+ * and must be short.
+ */
+public class HashedWheelTimer {
+
+    /**
+     * Work that runs when its deadline passes
+     */
+    public abstract static class Task {
+        private final AtomicBoolean queued = new AtomicBoolean(false); //waiting in the incoming queue
+        private volatile long requestedDelayMillis;
+        private long deadlineTick; //only touched by the timer thread
+        private boolean placed = false; //only touched by the timer thread, in a bucket
+
+        /**
+         * @param nowMillis the timer's clock
+         * @return the delay until the task wants to run again, or a negative value to stop
+         */
+        protected abstract long expire(long nowMillis);
+    }
+
+    private final long tickMillis;
+    private final List<List<Task>> wheel; //a bucket per tick
+    private final int mask;
+    private final ConcurrentLinkedQueue<Task> incoming = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean started = new AtomicBoolean(false);
+    private volatile boolean stopped = false;
+    private volatile long nowMillis = System.currentTimeMillis();
+    private long tick = 0; //only touched by the timer thread
+    private List<Task> spare = new ArrayList<>(); //only touched by the timer thread
+
+    /**
+     * @param tickMillis how often the wheel turns, the resolution of deadlines
+     * @param ticksPerWheel number of buckets, rounded up to a power of two
+     */
+    public HashedWheelTimer(long tickMillis, int ticksPerWheel) {
+        if (tickMillis < 1)
+            throw new IllegalArgumentException("Tick must be at least 1ms!");
+        if (ticksPerWheel < 1 || ticksPerWheel > 1 << 20)
+            throw new IllegalArgumentException("Ticks per wheel must be between 1 and 2^20!");
+
+        int size = ticksPerWheel == 1 ? 1 : Integer.highestOneBit(ticksPerWheel - 1) << 1;
+        this.tickMillis = tickMillis;
+        this.wheel = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            wheel.add(new ArrayList<>());
+        }
+        this.mask = size - 1;
+    }
+
+    /**
+     * Runs the task after the delay, or earlier if it is already waiting for a later deadline.
+     * The timer thread starts on the first call.
+     */
+    public void schedule(Task task, long delayMillis) {
+        if (task == null)
+            throw new IllegalArgumentException("Task is null!");
+        if (stopped)
+            return;
+
+        task.requestedDelayMillis = Math.max(0, delayMillis);
+        if (task.queued.compareAndSet(false, true)) {
+            incoming.add(task);
+        }
+        if (!started.get() && started.compareAndSet(false, true)) {
+            nowMillis = System.currentTimeMillis();
+            Thread thread = new Thread(this::turn, "wheel-timer");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * @return the time of the last tick, a clock that costs a volatile read once the wheel turns
+     */
+    public long millis() {
+        return started.get() ? nowMillis : System.currentTimeMillis();
+    }
+
+    public void stop() {
+        stopped = true;
+    }
+
+    private void turn() {
+        long start = System.nanoTime();
+        long tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        while (!stopped) {
+            long sleep;
+            while ((sleep = start + (tick + 1) * tickNanos - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(sleep);
+            }
+            tick++;
+            nowMillis = System.currentTimeMillis();
+
+            Task task;
+            while ((task = incoming.poll()) != null) {
+                task.queued.set(false);
+                long deadline = tick + ticks(task.requestedDelayMillis);
+                if (!task.placed) {
+                    place(task, deadline);
+                } else if (deadline < task.deadlineTick) { //moved earlier, leave the later bucket
+                    wheel.get((int) (task.deadlineTick & mask)).remove(task);
+                    place(task, deadline);
+                }
+            }
+            expireBucket();
+        }
+    }
+
+    private void expireBucket() {
+        int index = (int) (tick & mask);
+        List<Task> due = wheel.get(index);
+        wheel.set(index, spare);
+        for (Task task : due) {
+            if (task.deadlineTick > tick) { //a later turn of the wheel
+                wheel.get(index).add(task);
+                continue;
+            }
+            task.placed = false;
+            long next;
+            try {
+                next = task.expire(nowMillis);
+            } catch (RuntimeException ex) {
+                ex.printStackTrace(); //a failing task must not stop the wheel
+                next = -1;
+            }
+            if (next >= 0) {
+                place(task, tick + ticks(next));
+            }
+        }
+        due.clear();
+        spare = due;
+    }
+
+    private void place(Task task, long deadlineTick) {
+        task.deadlineTick = deadlineTick;
+        task.placed = true;
+        wheel.get((int) (deadlineTick & mask)).add(task);
+    }
+
+    //ticks - rounded up, a task never runs early and never in the tick it was placed in
+    private long ticks(long delayMillis) {
+        return Math.max(1, (delayMillis + tickMillis - 1) / tickMillis);
+    }
+}
@@ -0,0 +1,97 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+
+/**
+ * The heart-beating and idle timeout of one connection, a single task on the shared timer.
+ * Reads and writes only stamp the timer's clock; the task wakes up when the next heart-beat is
+ * due or the read deadline passes, sends a heart-beat if nothing else was written, and closes
+ * the connection if nothing was read within the deadline.
+ */
+public class Heartbeat extends HashedWheelTimer.Task {
+
+    private final ConnectionHandler<?> handler;
+    private final HashedWheelTimer timer;
+    private volatile long lastReadMillis;
+    private volatile long lastWriteMillis;
+    private volatile long sendEveryMillis = 0; //0 - no heart-beats to send
+    private volatile long readTimeoutMillis = 0; //0 - never times out
+    private volatile boolean cancelled = false;
+
+    public Heartbeat(ConnectionHandler<?> handler, HashedWheelTimer timer) {
+        if (handler == null)
+            throw new IllegalArgumentException("Handler is null!");
+        if (timer == null)
+            throw new IllegalArgumentException("Timer is null!");
+
+        this.handler = handler;
+        this.timer = timer;
+        this.lastReadMillis = timer.millis();
+        this.lastWriteMillis = lastReadMillis;
+    }
+
+    /**
+     * Sets what was negotiated, 0 turns a direction off
+     * @param sendEveryMillis how often to write something, a heart-beat if nothing else
+     * @param readTimeoutMillis how long the peer may stay silent before it's considered dead
+     */
+    public void configure(long sendEveryMillis, long readTimeoutMillis) {
+        this.sendEveryMillis = Math.max(0, sendEveryMillis);
+        this.readTimeoutMillis = Math.max(0, readTimeoutMillis);
+        long delay = nextDelay(timer.millis());
+        if (delay >= 0) {
+            timer.schedule(this, delay);
+        }
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public void readActivity() {
+        lastReadMillis = timer.millis();
+    }
+
+    public void writeActivity() {
+        lastWriteMillis = timer.millis();
+    }
+
+    @Override
+    protected long expire(long nowMillis) {
+        if (cancelled)
+            return -1;
+
+        if (handler.isReadPaused()) {
+            lastReadMillis = nowMillis; //silent because we stopped reading, not the peer
+        }
+        long readTimeout = readTimeoutMillis;
+        if (readTimeout > 0 && nowMillis - lastReadMillis >= readTimeout) {
+            cancelled = true;
+            System.err.println("Connection silent for " + (nowMillis - lastReadMillis) + "ms, closing it");
+            try {
+                handler.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            return -1;
+        }
+        long sendEvery = sendEveryMillis;
+        if (sendEvery > 0 && nowMillis - lastWriteMillis >= sendEvery) {
+            handler.sendHeartbeat();
+            lastWriteMillis = nowMillis;
+        }
+        return nextDelay(nowMillis);
+    }
+
+    //nextDelay - until the next heart-beat or the read deadline, whichever comes first
+    private long nextDelay(long nowMillis) {
+        long delay = Long.MAX_VALUE;
+        if (sendEveryMillis > 0) {
+            delay = Math.min(delay, lastWriteMillis + sendEveryMillis - nowMillis);
+        }
+        if (readTimeoutMillis > 0) {
+            delay = Math.min(delay, lastReadMillis + readTimeoutMillis - nowMillis);
+        }
+        return delay == Long.MAX_VALUE ? -1 : Math.max(0, delay);
+    }
+}
@@ -0,0 +1,59 @@
+package bgu.spl.net.srv;
+
+/**
+ * Decides when a reactor processes a read directly on the selector thread instead of handing it
+ * to the actor pool, and measures read-to-processed latency of both paths.
+ * A read runs inline only when the policy is enabled, the read is at most maxBytes and the
+ * connection's actor is idle. Frames the protocol doesn't report as inline safe
+ * (see StompMessagingProtocol.isInlineSafe) are still passed to the pool.
+ */
+public class InlineExecutionPolicy {
+
+    private final boolean enabled;
+    private final int maxBytes;
+    private final LatencyHistogram inlineLatency = new LatencyHistogram();
+    private final LatencyHistogram pooledLatency = new LatencyHistogram();
+
+    public InlineExecutionPolicy(boolean enabled, int maxBytes) {
+        if (maxBytes < 0)
+            throw new IllegalArgumentException("Max bytes must not be negative!");
+        this.enabled = enabled;
+        this.maxBytes = maxBytes;
+    }
+
+    public static InlineExecutionPolicy disabled() {
+        return new InlineExecutionPolicy(false, 0);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /*package*/ boolean admits(int readBytes) {
+        return enabled && readBytes <= maxBytes;
+    }
+
+    /*package*/ void recordInline(long nanos) {
+        inlineLatency.recordNanos(nanos);
+    }
+
+    /*package*/ void recordPooled(long nanos) {
+        pooledLatency.recordNanos(nanos);
+    }
+
+    public void printReport() {
+        System.out.println();
+        System.out.println("READ LATENCY (inline " + (enabled ? "on, max " + maxBytes + " bytes" : "off") + "):");
+        printLine("inline", inlineLatency);
+        printLine("pooled", pooledLatency);
+        System.out.println("all:    reads=" + (inlineLatency.count() + pooledLatency.count())
+                + " p50=" + LatencyHistogram.percentileMicros(0.50, inlineLatency, pooledLatency) + "us"
+                + " p99=" + LatencyHistogram.percentileMicros(0.99, inlineLatency, pooledLatency) + "us");
+    }
+
+    private static void printLine(String name, LatencyHistogram histogram) {
+        System.out.println(name + ": reads=" + histogram.count()
+                + " p50=" + histogram.percentileMicros(0.50) + "us"
+                + " p99=" + histogram.percentileMicros(0.99) + "us");
+    }
+}
@@ -0,0 +1,78 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram in microseconds.
+ * Buckets are log-linear (8 per power of two), so a percentile is exact up to 1/8 of its value.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKETS = 8;
+    private static final int SUB_BITS = 3;
+    private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    public void recordNanos(long nanos) {
+        counts.incrementAndGet(bucket(Math.max(0, nanos / 1000)));
+    }
+
+    public long count() {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        return total;
+    }
+
+    /**
+     * @param fraction between 0 and 1, e.g. 0.99 for p99
+     * @return the lower bound of the bucket holding that percentile in microseconds, 0 when empty
+     */
+    public long percentileMicros(double fraction) {
+        return percentileMicros(fraction, this);
+    }
+
+    /**
+     * A percentile over the samples of several histograms together
+     */
+    public static long percentileMicros(double fraction, LatencyHistogram... histograms) {
+        long[] merged = new long[BUCKETS];
+        long total = 0;
+        for (LatencyHistogram histogram : histograms) {
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = histogram.counts.get(i);
+                merged[i] += count;
+                total += count;
+            }
+        }
+        if (total == 0)
+            return 0;
+
+        long rank = (long) Math.ceil(fraction * total);
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += merged[i];
+            if (seen >= rank)
+                return lowerBound(i);
+        }
+        return lowerBound(BUCKETS - 1);
+    }
+
+    private static int bucket(long micros) {
+        if (micros < SUB_BUCKETS)
+            return (int) micros;
+        int octave = 63 - Long.numberOfLeadingZeros(micros); //at least SUB_BITS
+        int sub = (int) (micros >>> (octave - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return (octave - SUB_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    private static long lowerBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int octave = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        int sub = bucket % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + sub) << (octave - SUB_BITS);
+    }
+}
@@ -0,0 +1,8 @@
+package bgu.spl.net.srv;
+
+/**
+ * How a multi-loop reactor spreads accepted connections over its selector loops
+ */
+public enum LoopAssignment {
+    ROUND_ROBIN, LEAST_LOADED
+}
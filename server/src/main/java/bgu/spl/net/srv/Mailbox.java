@@ -0,0 +1,134 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The pending work of one actor (a connection handler): an intrusive multi-producer,
+ * single-consumer queue of tasks and an atomic scheduled/idle flag.
+ * The tasks are the queue nodes, so submitting a task takes no lock and allocates nothing.
+ * Only one worker drains a mailbox at a time, so the tasks of an actor run one after the other,
+ * in submission order.
+ */
+public class Mailbox {
+
+    /**
+     * A unit of work of an actor, linked directly into its mailbox.
+     * A task may be submitted again once it has started running, never while it is queued.
+     */
+    public abstract static class Task implements Runnable {
+        private volatile Task next;
+    }
+
+    private static final class Stub extends Task {
+        @Override
+        public void run() {
+        }
+    }
+
+    private final Task stub = new Stub();
+    private final AtomicReference<Task> tail = new AtomicReference<>(stub);
+    private Task head = stub; //only touched by the worker draining the mailbox
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile int lastWorker = -1; //the worker that last drained this mailbox, for affinity
+    /*package*/ volatile Mailbox nextQueued; //links a scheduled mailbox into a worker's run queue
+
+    /**
+     * Adds a task, may be called from any thread
+     * @return true if the mailbox was idle and the caller must hand it to the pool
+     */
+    /*package*/ boolean add(Task task) {
+        push(task);
+        return scheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Runs up to budget pending tasks, called by the worker that took the scheduled mailbox
+     * @return true if tasks are left and the mailbox stays scheduled, false if it went idle
+     */
+    /*package*/ boolean drain(int budget, int worker) {
+        lastWorker = worker;
+        for (int i = 0; i < budget; i++) {
+            Task task = poll();
+            if (task == null)
+                break;
+            runSafely(task);
+        }
+        return stayScheduled();
+    }
+
+    /**
+     * Claims an idle mailbox so the caller can run the actor's work on its own thread.
+     * While claimed, added tasks wait in the mailbox and the caller counts as the worker.
+     * @return true if the mailbox was idle and is now claimed
+     */
+    /*package*/ boolean tryClaim() {
+        return scheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Ends a claim taken by tryClaim
+     * @return true if tasks were added meanwhile and the caller must hand the mailbox to the pool
+     */
+    /*package*/ boolean releaseClaim() {
+        return stayScheduled();
+    }
+
+    /*package*/ int lastWorker() {
+        return lastWorker;
+    }
+
+    private boolean stayScheduled() {
+        if (isEmpty()) {
+            scheduled.set(false);
+            if (isEmpty() || !scheduled.compareAndSet(false, true)) {
+                return false; //idle, the next add schedules the mailbox again
+            }
+        }
+        return true;
+    }
+
+    private void runSafely(Task task) {
+        try {
+            task.run();
+        } catch (Throwable ex) {
+            ex.printStackTrace(); //an exception must not kill the worker or leave the mailbox scheduled
+        }
+    }
+
+    private void push(Task task) {
+        task.next = null;
+        Task previous = tail.getAndSet(task);
+        previous.next = task;
+    }
+
+    private Task poll() {
+        Task first = head;
+        Task next = first.next;
+        if (first == stub) {
+            if (next == null)
+                return null;
+            head = next;
+            first = next;
+            next = next.next;
+        }
+        if (next != null) {
+            head = next;
+            return first;
+        }
+        if (first != tail.get())
+            return null; //a producer is between swapping the tail and linking its task
+
+        push(stub);
+        next = first.next;
+        if (next != null) {
+            head = next;
+            return first;
+        }
+        return null;
+    }
+
+    private boolean isEmpty() {
+        return head == stub && tail.get() == stub;
+    }
+}
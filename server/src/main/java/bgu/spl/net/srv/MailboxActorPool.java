@@ -0,0 +1,210 @@
+package bgu.spl.net.srv;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An actor thread pool where every actor owns a Mailbox.
+ * The tasks of one actor run one at a time, in the order they were submitted, without a global
+ * lock or a per-task allocation.
+ * A scheduled mailbox runs up to a budget of tasks before it goes back to a queue, and it is
+ * queued on the worker that ran it last. Every worker has its own queue and steals from the
+ * others when its own is empty. The queues link the mailboxes themselves, so scheduling one
+ * allocates nothing either.
+ */
+public class MailboxActorPool {
+
+    private static final int DEFAULT_BUDGET = Integer.getInteger("stomp.actorBudget", 32);
+
+    private final Worker[] workers;
+    private final int budget;
+    private final AtomicInteger nextWorker = new AtomicInteger();
+    private volatile boolean shutdown = false;
+
+    public MailboxActorPool(int threads) {
+        this(threads, DEFAULT_BUDGET);
+    }
+
+    public MailboxActorPool(int threads, int budget) {
+        if (threads < 1 || budget < 1)
+            throw new IllegalArgumentException("Threads and budget must be positive!");
+
+        this.budget = budget;
+        this.workers = new Worker[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = new Worker(i);
+        }
+        for (Worker worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    public void submit(Mailbox mailbox, Mailbox.Task task) {
+        if (mailbox.add(task)) {
+            schedule(mailbox);
+        }
+    }
+
+    /**
+     * Claims an idle actor so the caller can run its work directly, see Mailbox.tryClaim
+     */
+    public boolean tryClaim(Mailbox mailbox) {
+        return mailbox.tryClaim();
+    }
+
+    /**
+     * Ends a claim, tasks submitted while the actor was claimed are scheduled now
+     */
+    public void release(Mailbox mailbox) {
+        if (mailbox.releaseClaim()) {
+            schedule(mailbox);
+        }
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        for (Worker worker : workers) {
+            worker.thread.interrupt();
+        }
+    }
+
+    private void schedule(Mailbox mailbox) {
+        int preferred = mailbox.lastWorker();
+        if (preferred < 0) {
+            preferred = Math.floorMod(nextWorker.getAndIncrement(), workers.length);
+        }
+
+        Worker worker = workers[preferred];
+        worker.queue.add(mailbox);
+        if (!worker.wake()) {
+            wakeIdleWorker(); //the preferred worker is busy, let an idle one steal
+        }
+    }
+
+    private void wakeIdleWorker() {
+        for (Worker worker : workers) {
+            if (worker.wake())
+                return;
+        }
+    }
+
+    private Mailbox steal(int thief) {
+        for (int i = 1; i < workers.length; i++) {
+            Mailbox stolen = workers[(thief + i) % workers.length].queue.poll();
+            if (stolen != null)
+                return stolen;
+        }
+        return null;
+    }
+
+    private boolean hasQueuedWork() {
+        for (Worker worker : workers) {
+            if (!worker.queue.isEmpty())
+                return true;
+        }
+        return false;
+    }
+
+    private class Worker implements Runnable {
+        private final int index;
+        private final Thread thread;
+        private final RunQueue queue = new RunQueue();
+        private volatile boolean parked = false;
+
+        Worker(int index) {
+            this.index = index;
+            this.thread = new Thread(this, "actor-worker-" + index);
+        }
+
+        @Override
+        public void run() {
+            while (!shutdown) {
+                Mailbox mailbox = queue.poll();
+                if (mailbox == null) {
+                    mailbox = steal(index);
+                }
+                if (mailbox == null) {
+                    park();
+                } else if (mailbox.drain(budget, index)) {
+                    queue.add(mailbox); //budget used up, let the actors queued behind it run first
+                }
+            }
+        }
+
+        private void park() {
+            parked = true;
+            if (!hasQueuedWork() && !shutdown) { //checked after publishing parked, so a submit can't be missed
+                LockSupport.park(this);
+            }
+            parked = false;
+        }
+
+        boolean wake() {
+            if (!parked)
+                return false;
+            LockSupport.unpark(thread);
+            return true;
+        }
+    }
+
+    /**
+     * The scheduled mailboxes of one worker, an intrusive queue linked through Mailbox.nextQueued.
+     * Any thread may add a mailbox. One thread at a time polls, the owner or a thief, the others
+     * find the queue busy and look elsewhere.
+     * A scheduled mailbox is in at most one queue, so its link is never shared.
+     */
+    private static final class RunQueue {
+        private final Mailbox stub = new Mailbox();
+        private final AtomicReference<Mailbox> tail = new AtomicReference<>(stub);
+        private volatile Mailbox head = stub; //only written by the thread holding polling
+        private final AtomicBoolean polling = new AtomicBoolean(false);
+
+        void add(Mailbox mailbox) {
+            mailbox.nextQueued = null;
+            Mailbox previous = tail.getAndSet(mailbox);
+            previous.nextQueued = mailbox;
+        }
+
+        Mailbox poll() {
+            if (!polling.compareAndSet(false, true))
+                return null; //another worker is taking a mailbox from this queue
+            try {
+                return pollExclusively();
+            } finally {
+                polling.set(false);
+            }
+        }
+
+        boolean isEmpty() {
+            return head == stub && tail.get() == stub;
+        }
+
+        private Mailbox pollExclusively() {
+            Mailbox first = head;
+            Mailbox next = first.nextQueued;
+            if (first == stub) {
+                if (next == null)
+                    return null;
+                head = next;
+                first = next;
+                next = next.nextQueued;
+            }
+            if (next != null) {
+                head = next;
+                return first;
+            }
+            if (first != tail.get())
+                return null; //a producer is between swapping the tail and linking its mailbox
+
+            add(stub);
+            next = first.nextQueued;
+            if (next != null) {
+                head = next;
+                return first;
+            }
+            return null;
+        }
+    }
+}
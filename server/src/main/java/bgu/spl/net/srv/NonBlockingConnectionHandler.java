@@ -6,40 +6,65 @@ import bgu.spl.net.impl.stomp.ConnectionsImpl;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.nio.channels.SelectionKey;
 import java.nio.channels.SocketChannel;
-import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
     private static final int BUFFER_ALLOCATION_SIZE = 1 << 13; //8k
     private static final ConcurrentLinkedQueue<ByteBuffer> BUFFER_POOL = new ConcurrentLinkedQueue<>();
+    private static final int MAX_WRITE_BATCH_BYTES = Integer.getInteger("stomp.writeBatchBytes", 1 << 16); //64k
+    private static final int MAX_WRITE_BATCH_BUFFERS = 1024; //IOV_MAX on linux
+    private static final int MAX_PENDING_READS = Integer.getInteger("stomp.maxPendingReads", 4); //reads waiting for the pool
+    private static final ByteBuffer HEARTBEAT = ByteBuffer.wrap(new byte[] {'\n'}).asReadOnlyBuffer(); //an EOL
 
     private final StompMessagingProtocol<T> protocol;
     private final MessageEncoderDecoder<T> encdec;
-    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<>();
+    private final OutboundQueue<T> outbound;
     private final SocketChannel chan;
-    private final Reactor<T> reactor;
+    private final SelectorLoop<T> loop;
+    private final Consumer<T> processor;
+    private final Predicate<T> inlineProcessor; //processes inline safe frames, rejects the rest
     //Additional fields:
     private int connectionId;
     private ConnectionsImpl<T> connections;
-    private boolean initialized = false;
+    private volatile boolean initialized = false; //set on the loop thread, read by close on any thread
+    private volatile Heartbeat heartbeat; //set once registered
+    private final Mailbox mailbox = new Mailbox();
+    private final AtomicBoolean closed = new AtomicBoolean(false);
+    private final AtomicBoolean released = new AtomicBoolean(false); //the slot and the protocol were let go
+    private final AtomicBoolean writeInterestPending = new AtomicBoolean(false); //OP_WRITE is set or requested
+    private final AtomicInteger readPauses = new AtomicInteger(); //backpressure, OP_READ is off while positive
+    private final AtomicInteger pendingReads = new AtomicInteger(); //read tasks not run yet
+    private final AtomicReference<ReadTask> idleReadTasks = new AtomicReference<>(); //a stack, popped by the loop thread only
 
     //updated constructor to have connections argument and intialization
     public NonBlockingConnectionHandler(
             MessageEncoderDecoder<T> reader,
             StompMessagingProtocol<T> protocol,
             SocketChannel chan,
-            Reactor<T> reactor, ConnectionsImpl<T> connections) {
+            SelectorLoop<T> loop, ConnectionsImpl<T> connections) {
         this.chan = chan;
         this.encdec = reader;
         this.protocol = protocol;
-        this.reactor = reactor;
+        this.loop = loop;
         this.connections = connections;
+        this.processor = protocol::process;
+        this.inlineProcessor = message -> {
+            if (!protocol.isInlineSafe(message))
+                return false;
+            protocol.process(message);
+            return true;
+        };
+        this.outbound = new OutboundQueue<>(reader::release);
     }
 
-    public Runnable continueRead() {
+    public Mailbox.Task continueRead() {
         ByteBuffer buf = leaseBuffer();
         boolean success = false;
         try {
@@ -49,24 +74,37 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
         }
 
         if (success) {
-            if (!initialized) {
-                connectionId = connections.registerHandler(this);
+            if (initialized) {
+                heartbeat.readActivity();
+            } else {
+                try {
+                    connectionId = connections.registerHandler(this);
+                } catch (IllegalStateException ex) { //connection limit reached
+                    ex.printStackTrace();
+                    releaseBuffer(buf);
+                    close();
+                    return null;
+                }
+                heartbeat = connections.heartbeat(connectionId);
                 protocol.start(connectionId, connections); //starting protocol
                 initialized = true;
-            }
-            buf.flip();
-            return () -> {
-                try {
-                    while (buf.hasRemaining()) {
-                        T nextMessage = encdec.decodeNextByte(buf.get());
-                        if (nextMessage != null) {
-                            protocol.process(nextMessage);
-                        }
-                    }
-                } finally {
+                if (closed.get()) { //closed on another thread before it could see initialized
+                    releaseConnection();
                     releaseBuffer(buf);
+                    return null;
                 }
-            };
+            }
+            buf.flip();
+            ReadTask task = leaseReadTask(buf, System.nanoTime());
+            if (loop.inlinePolicy().admits(buf.remaining()) && loop.pool().tryClaim(mailbox)) {
+                task.runInline(); //the actor is idle, skip the hop to the pool
+                return null;
+            }
+            task.pending = true;
+            if (pendingReads.incrementAndGet() == MAX_PENDING_READS) {
+                pauseReading(); //the actor is behind, don't read ahead of it without bound
+            }
+            return task;
         } else {
             releaseBuffer(buf);
             close();
@@ -76,11 +114,30 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     }
 
     public void close() {
+        if (closed.compareAndSet(false, true)) {
+            loop.connectionClosed();
+            if (initialized) {
+                releaseConnection();
+            }
+        }
         try {
             chan.close();
         } catch (IOException ex) {
             ex.printStackTrace();
         }
+        outbound.close(); //nothing will be written anymore
+    }
+
+    private void releaseConnection() {
+        if (released.compareAndSet(false, true)) {
+            connections.disconnect(connectionId); //frees the connection's slot, no-op after a DISCONNECT
+            loop.pool().submit(mailbox, new Mailbox.Task() { //after any frame still being processed
+                @Override
+                public void run() {
+                    protocol.connectionClosed();
+                }
+            });
+        }
     }
 
     public boolean isClosed() {
@@ -88,25 +145,54 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
     }
 
     public void continueWrite() {
-        while (!writeQueue.isEmpty()) {
-            try {
-                ByteBuffer top = writeQueue.peek();
-                chan.write(top);
-                if (top.hasRemaining()) {
-                    return;
-                } else {
-                    writeQueue.remove();
+        try {
+            while (!outbound.isEmpty()) {
+                long batchBytes = outbound.gather(MAX_WRITE_BATCH_BYTES, MAX_WRITE_BATCH_BUFFERS);
+                int count = outbound.batchCount();
+                long written;
+                try {
+                    written = count == 0 ? 0 : chan.write(outbound.batch(), 0, count); //one syscall for the whole batch
+                } finally {
+                    outbound.written();
+                }
+                if (written < batchBytes) {
+                    return; //socket buffer is full, the rest is resumed on the next OP_WRITE
                 }
-            } catch (IOException ex) {
-                ex.printStackTrace();
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            close();
+            return;
+        }
+
+        if (outbound.isEmpty()) {
+            if (protocol.shouldTerminate() || outbound.isOverflowed()) {
                 close();
+                return;
+            }
+            writeInterestPending.set(false);
+            if (!outbound.isEmpty() && writeInterestPending.compareAndSet(false, true)) {
+                return; //a send raced the drain and saw the flag still set, keep OP_WRITE for it
             }
+            loop.disableWrite(this);
         }
+    }
 
-        if (writeQueue.isEmpty()) {
-            if (protocol.shouldTerminate()) close();
-            else reactor.updateInterestedOps(chan, SelectionKey.OP_READ);
+    /**
+     * Takes a read task that already ran, so a connection that keeps up reuses a single task.
+     * Only the loop thread pops, a task can't leave and come back between its get and its CAS.
+     */
+    private ReadTask leaseReadTask(ByteBuffer buf, long readNanos) {
+        ReadTask task = idleReadTasks.get();
+        while (task != null && !idleReadTasks.compareAndSet(task, task.nextIdle)) {
+            task = idleReadTasks.get();
+        }
+        if (task == null) {
+            task = new ReadTask(); //every earlier task is still queued on the mailbox
         }
+        task.buf = buf;
+        task.readNanos = readNanos;
+        return task;
     }
 
     private static ByteBuffer leaseBuffer() {
@@ -125,7 +211,135 @@ public class NonBlockingConnectionHandler<T> implements ConnectionHandler<T> {
 
     @Override
     public void send(T msg) {
-        writeQueue.add(ByteBuffer.wrap(encdec.encode(msg)));
-        reactor.updateInterestedOps(chan, SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        enqueue(new EncodedMessage<>(msg, encdec.encodeBuffers(msg)), protocol.conflationKey(msg));
+        Heartbeat heartbeat = this.heartbeat;
+        if (heartbeat != null) {
+            heartbeat.writeActivity();
+        }
+    }
+
+    @Override
+    public void sendHeartbeat() {
+        enqueue(new EncodedMessage<>(null, new ByteBuffer[] {HEARTBEAT.duplicate()}), null);
+    }
+
+    @Override
+    public boolean isSaturated() {
+        return outbound.isSaturated();
+    }
+
+    @Override
+    public boolean whenDrained(Runnable resume) {
+        return outbound.whenDrained(resume);
+    }
+
+    @Override
+    public void pauseReading() {
+        if (readPauses.getAndIncrement() == 0) {
+            loop.updateReadInterest(this);
+        }
+    }
+
+    @Override
+    public void resumeReading() {
+        if (readPauses.decrementAndGet() == 0) {
+            loop.updateReadInterest(this);
+        }
+    }
+
+    @Override
+    public boolean isReadPaused() {
+        return readPauses.get() > 0;
+    }
+
+    private void enqueue(EncodedMessage<T> message, Object key) {
+        if (!outbound.offer(message, key)) { //a slow consumer, over the limits
+            T error = protocol.slowConsumerError();
+            if (error == null) {
+                close();
+                return;
+            }
+            outbound.offerLast(new EncodedMessage<>(error, encdec.encodeBuffers(error))); //closed once written
+        }
+        if (isClosed()) { //raced with close, make sure the message doesn't stay queued
+            close();
+            return;
+        }
+        if (writeInterestPending.compareAndSet(false, true)) { //one request per burst, until the queue is drained
+            loop.requestWrite(this);
+        }
+    }
+
+    /*package*/ SocketChannel channel() {
+        return chan;
+    }
+
+    /*package*/ Mailbox mailbox() {
+        return mailbox;
+    }
+
+    private class ReadTask extends Mailbox.Task {
+        private ByteBuffer buf;
+        private long readNanos;
+        private T deferred; //decoded on the selector thread but not inline safe
+        private boolean pending = false; //counted in pendingReads
+        private ReadTask nextIdle; //the link in idleReadTasks
+
+        @Override
+        public void run() {
+            try {
+                if (deferred != null) {
+                    T message = deferred;
+                    deferred = null;
+                    processor.accept(message);
+                }
+                encdec.decode(buf, processor);
+            } finally {
+                releaseBuffer(buf);
+                loop.inlinePolicy().recordPooled(System.nanoTime() - readNanos);
+                if (pending && pendingReads.getAndDecrement() == MAX_PENDING_READS) {
+                    resumeReading();
+                }
+                recycle();
+            }
+        }
+
+        /**
+         * Processes the read on the selector thread while the actor is claimed, up to the first
+         * frame that isn't inline safe. That frame and the rest of the read go to the pool.
+         */
+        void runInline() {
+            boolean handedOff = false; //the task runs on the pool and recycles itself there
+            try {
+                T rejected = encdec.decodeUntil(buf, inlineProcessor);
+                if (rejected != null) {
+                    deferred = rejected; //the decoder doesn't touch it until its next call
+                    loop.pool().submit(mailbox, this);
+                    handedOff = true;
+                    return;
+                }
+                loop.inlinePolicy().recordInline(System.nanoTime() - readNanos);
+            } catch (RuntimeException ex) {
+                ex.printStackTrace(); //same as on the pool, a failed task must not take the loop down
+            } finally {
+                if (!handedOff) {
+                    releaseBuffer(buf);
+                    recycle();
+                }
+                loop.pool().release(mailbox); //schedules the deferred part, if any
+            }
+        }
+
+        //recycle - the last thing done with a task, it may be leased again right away
+        private void recycle() {
+            buf = null;
+            deferred = null;
+            pending = false;
+            ReadTask top;
+            do {
+                top = idleReadTasks.get();
+                nextIdle = top;
+            } while (!idleReadTasks.compareAndSet(top, this));
+        }
     }
 }
@@ -0,0 +1,426 @@
+package bgu.spl.net.srv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * The messages waiting to be written to one connection, bounded in frames and bytes.
+ * Any thread may offer, a single writer gathers batches from the head and removes what was
+ * written. A message is in flight once it was gathered, it is never dropped from then on since
+ * part of it may already be on the wire.
+ * When an offer would go over a limit the policy decides:
+ * DISCONNECT drops everything not in flight and refuses the offer, the caller closes the
+ * connection (after a final frame, see offerLast).
+ * DROP_OLDEST drops the oldest droppable messages until the new one fits.
+ * CONFLATE replaces the queued message with the same key by the new one, and drops the oldest
+ * like DROP_OLDEST if there is none.
+ * Only messages offered with a key are ever dropped. Messages without one are queued beyond the
+ * limits, a droppable message that still doesn't fit is dropped itself.
+ * Before the limits there are water marks for backpressure: above the high one the queue is
+ * saturated and publishers stop being read from (see whenDrained), until it drains to the low one.
+ */
+public class OutboundQueue<T> {
+
+    public enum Policy {
+        DISCONNECT, DROP_OLDEST, CONFLATE
+    }
+
+    private static final long DEFAULT_MAX_BYTES = Long.getLong("stomp.outboundMaxBytes", 4L << 20); //4M
+    private static final int DEFAULT_MAX_FRAMES = Integer.getInteger("stomp.outboundMaxFrames", 8192);
+    private static final Policy DEFAULT_POLICY = Policy.valueOf(System.getProperty("stomp.outboundPolicy", "DISCONNECT"));
+    private static final int HIGH_WATER_PERCENT = Integer.getInteger("stomp.outboundHighWaterPercent", 50); //of the limits
+    private static final int LOW_WATER_PERCENT = Integer.getInteger("stomp.outboundLowWaterPercent", 10);
+
+    private static final LongAdder DISCONNECTED = new LongAdder(); //connections dropped for overflowing
+    private static final LongAdder DROPPED_OLDEST = new LongAdder();
+    private static final LongAdder CONFLATED = new LongAdder();
+    private static final LongAdder DROPPED_NEWEST = new LongAdder(); //offers that didn't fit at all
+    private static final LongAdder SATURATED = new LongAdder(); //times a queue crossed its high-water mark
+    private static final LongAdder PAUSES = new LongAdder(); //publishers waiting for a queue to drain
+
+    private static final class Entry<T> {
+        private EncodedMessage<T> message;
+        private final Object key;
+        private long bytes;
+        private boolean inFlight = false;
+
+        Entry(EncodedMessage<T> message, Object key, long bytes) {
+            this.message = message;
+            this.key = key;
+            this.bytes = bytes;
+        }
+    }
+
+    private final long maxBytes;
+    private final int maxFrames;
+    private final long highWaterBytes;
+    private final int highWaterFrames;
+    private final long lowWaterBytes;
+    private final int lowWaterFrames;
+    private final Policy policy;
+    private final Consumer<T> release; //gives back the resources of a dropped or written message
+    private final ReentrantLock lock = new ReentrantLock(); //not a monitor, virtual threads block on it without pinning
+    private final ArrayDeque<Entry<T>> queue = new ArrayDeque<>();
+    private final HashMap<Object, Entry<T>> latest = new HashMap<>(); //key -> its newest entry, CONFLATE only
+    private long bytes = 0;
+    private boolean overflowed = false; //DISCONNECT fired, only the final frame may follow
+    private boolean closed = false;
+    private volatile boolean saturated = false; //above the high-water mark and not drained to the low one yet
+    private List<Runnable> drainWaiters = new ArrayList<>();
+    private ByteBuffer[] batch = new ByteBuffer[16]; //only touched by the writer
+    private int batchCount = 0;
+    private int batchMessages = 0; //guarded by lock, entries gathered into the batch, from the head
+
+    public OutboundQueue(Consumer<T> release) {
+        this(DEFAULT_MAX_BYTES, DEFAULT_MAX_FRAMES, DEFAULT_POLICY, release);
+    }
+
+    public OutboundQueue(long maxBytes, int maxFrames, Policy policy, Consumer<T> release) {
+        if (maxBytes < 1 || maxFrames < 1)
+            throw new IllegalArgumentException("Limits must be positive!");
+        if (policy == null)
+            throw new IllegalArgumentException("Policy is null!");
+        if (release == null)
+            throw new IllegalArgumentException("Release is null!");
+
+        this.maxBytes = maxBytes;
+        this.maxFrames = maxFrames;
+        this.highWaterBytes = maxBytes * HIGH_WATER_PERCENT / 100;
+        this.highWaterFrames = (int) ((long) maxFrames * HIGH_WATER_PERCENT / 100);
+        this.lowWaterBytes = maxBytes * LOW_WATER_PERCENT / 100;
+        this.lowWaterFrames = (int) ((long) maxFrames * LOW_WATER_PERCENT / 100);
+        this.policy = policy;
+        this.release = release;
+    }
+
+    /**
+     * Queues the message, applying the policy if it doesn't fit
+     * @param key messages with equal keys may replace each other, null if it must not be dropped
+     * @return false if the queue overflowed under DISCONNECT and the connection should be closed,
+     * the message was not queued. Only returned once.
+     */
+    public boolean offer(EncodedMessage<T> message, Object key) {
+        lock.lock();
+        try {
+            if (closed || overflowed) {
+                release(message);
+                return true;
+            }
+
+            long size = message.remaining();
+            if (fits(size))
+                return append(message, key, size);
+
+            switch (policy) {
+                case DISCONNECT:
+                    overflowed = true;
+                    DISCONNECTED.increment();
+                    release(message);
+                    dropQueued();
+                    return false;
+                case CONFLATE:
+                    if (key != null && conflate(message, key, size))
+                        return true;
+                    return dropOldestAndAppend(message, key, size); //nothing to replace
+                case DROP_OLDEST:
+                default:
+                    return dropOldestAndAppend(message, key, size);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a final message regardless of the limits, later offers are dropped
+     */
+    public void offerLast(EncodedMessage<T> message) {
+        lock.lock();
+        try {
+            if (closed) {
+                release(message);
+                return;
+            }
+            overflowed = true;
+            long size = message.remaining();
+            queue.add(new Entry<>(message, null, size));
+            bytes += size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true while above the high-water mark, a racy read for a cheap check before whenDrained
+     */
+    public boolean isSaturated() {
+        return saturated;
+    }
+
+    /**
+     * Runs resume once the queue drains to the low-water mark or is closed, on the thread that
+     * drained or closed it
+     * @return false if the queue isn't saturated, resume won't be run
+     */
+    public boolean whenDrained(Runnable resume) {
+        lock.lock();
+        try {
+            if (!saturated || closed)
+                return false;
+            drainWaiters.add(resume);
+            PAUSES.increment();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Gathers the buffers of messages from the head into the batch, marking them in flight
+     * @return the bytes gathered, at least one message even if it is over the limits
+     */
+    public long gather(long maxBatchBytes, int maxBatchBuffers) {
+        lock.lock();
+        try {
+            long batchBytes = 0;
+            for (Entry<T> entry : queue) { //FIFO, a partially written head comes first
+                ByteBuffer[] buffers = entry.message.buffers();
+                long messageBytes = entry.message.remaining();
+                if (batchCount > 0 && (batchBytes + messageBytes > maxBatchBytes
+                        || batchCount + buffers.length > maxBatchBuffers)) {
+                    break;
+                }
+                for (ByteBuffer buffer : buffers) {
+                    if (buffer.hasRemaining()) {
+                        addToBatch(buffer);
+                    }
+                }
+                entry.inFlight = true;
+                batchMessages++;
+                batchBytes += messageBytes;
+            }
+            return batchBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public ByteBuffer[] batch() {
+        return batch;
+    }
+
+    public int batchCount() {
+        return batchCount;
+    }
+
+    /**
+     * Clears the batch and removes the messages that were written completely.
+     * Messages the write didn't start on are no longer in flight, the policy may drop them again.
+     * Once the queue is closed the rest of the batch is released, nothing is written anymore.
+     */
+    public void written() {
+        List<Runnable> drained;
+        lock.lock();
+        try {
+            Arrays.fill(batch, 0, batchCount, null);
+            batchCount = 0;
+
+            Entry<T> top;
+            while ((top = queue.peek()) != null && !top.message.hasRemaining()) {
+                queue.remove();
+                remove(top);
+                batchMessages--;
+            }
+            if (closed) {
+                Entry<T> unwritten; //close left them to the writer, which is done with them now
+                while ((unwritten = queue.poll()) != null) {
+                    remove(unwritten);
+                }
+            }
+            Iterator<Entry<T>> it = queue.iterator();
+            for (int i = 0; i < batchMessages && it.hasNext(); i++) {
+                Entry<T> entry = it.next();
+                entry.inFlight = entry.message.remaining() < entry.bytes; //partially written
+            }
+            batchMessages = 0;
+            drained = saturated && bytes <= lowWaterBytes && queue.size() <= lowWaterFrames ? drained() : null;
+        } finally {
+            lock.unlock();
+        }
+        resume(drained);
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return queue.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true once offerLast was called or DISCONNECT fired, the connection is to be closed
+     * when the queue drains
+     */
+    public boolean isOverflowed() {
+        lock.lock();
+        try {
+            return overflowed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops everything, nothing will be written anymore. Messages in the batch the writer holds
+     * may still be read from, the writer releases them in written()
+     */
+    public void close() {
+        List<Runnable> drained;
+        lock.lock();
+        try {
+            closed = true;
+            Iterator<Entry<T>> it = queue.iterator();
+            for (int i = 0; i < batchMessages && it.hasNext(); i++) {
+                it.next(); //the batch, from the head
+            }
+            while (it.hasNext()) {
+                Entry<T> dropped = it.next();
+                it.remove();
+                remove(dropped);
+            }
+            drained = drained();
+        } finally {
+            lock.unlock();
+        }
+        resume(drained); //publishers don't wait for a connection that is gone
+    }
+
+    public static void printReport() {
+        System.out.println();
+        System.out.println("OUTBOUND QUEUES (policy " + DEFAULT_POLICY + ", max " + DEFAULT_MAX_FRAMES + " frames, "
+                + DEFAULT_MAX_BYTES + " bytes):");
+        System.out.println("disconnected=" + DISCONNECTED.sum() + " droppedOldest=" + DROPPED_OLDEST.sum()
+                + " conflated=" + CONFLATED.sum() + " droppedNewest=" + DROPPED_NEWEST.sum()
+                + " saturated=" + SATURATED.sum() + " publisherPauses=" + PAUSES.sum());
+    }
+
+    private boolean fits(long size) {
+        return queue.size() < maxFrames && bytes + size <= maxBytes;
+    }
+
+    private boolean append(EncodedMessage<T> message, Object key, long size) {
+        Entry<T> entry = new Entry<>(message, key, size);
+        queue.add(entry);
+        bytes += size;
+        if (key != null && policy == Policy.CONFLATE) {
+            latest.put(key, entry);
+        }
+        if (!saturated && (bytes > highWaterBytes || queue.size() > highWaterFrames)) {
+            saturated = true;
+            SATURATED.increment();
+        }
+        return true;
+    }
+
+    //drained - leaves the saturated state, the waiters are resumed outside the lock
+    private List<Runnable> drained() {
+        saturated = false;
+        if (drainWaiters.isEmpty())
+            return null;
+        List<Runnable> waiters = drainWaiters;
+        drainWaiters = new ArrayList<>();
+        return waiters;
+    }
+
+    private static void resume(List<Runnable> waiters) {
+        if (waiters != null) {
+            for (Runnable resume : waiters) {
+                resume.run();
+            }
+        }
+    }
+
+    //conflate - the newest queued message of the key takes the new content, keeping its place
+    private boolean conflate(EncodedMessage<T> message, Object key, long size) {
+        Entry<T> entry = latest.get(key);
+        if (entry == null || entry.inFlight)
+            return false;
+
+        release(entry.message);
+        bytes += size - entry.bytes;
+        entry.message = message;
+        entry.bytes = size;
+        CONFLATED.increment();
+        return true;
+    }
+
+    //dropOldestAndAppend - makes room by dropping the oldest, or drops the new message if that isn't enough
+    private boolean dropOldestAndAppend(EncodedMessage<T> message, Object key, long size) {
+        while (!fits(size) && dropOldest()) {
+            DROPPED_OLDEST.increment();
+        }
+        if (!fits(size) && key != null) {
+            DROPPED_NEWEST.increment();
+            release(message);
+            return true;
+        }
+        return append(message, key, size);
+    }
+
+    //dropOldest - the first droppable message, behind the in flight ones and those without a key
+    private boolean dropOldest() {
+        Iterator<Entry<T>> it = queue.iterator();
+        while (it.hasNext()) {
+            Entry<T> entry = it.next();
+            if (entry.key != null && !entry.inFlight) {
+                it.remove();
+                remove(entry);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void dropQueued() {
+        Iterator<Entry<T>> it = queue.iterator();
+        while (it.hasNext()) {
+            Entry<T> entry = it.next();
+            if (!entry.inFlight) {
+                it.remove();
+                remove(entry);
+            }
+        }
+    }
+
+    //remove - accounting and release of an entry already taken off the queue
+    private void remove(Entry<T> entry) {
+        bytes -= entry.bytes;
+        if (entry.key != null) {
+            latest.remove(entry.key, entry);
+        }
+        release(entry.message);
+    }
+
+    private void release(EncodedMessage<T> message) {
+        if (message.message() != null) { //heart-beats have no message
+            release.accept(message.message());
+        }
+    }
+
+    private void addToBatch(ByteBuffer buffer) {
+        if (batchCount >= batch.length) {
+            batch = Arrays.copyOf(batch, batch.length * 2);
+        }
+        batch[batchCount++] = buffer;
+    }
+}
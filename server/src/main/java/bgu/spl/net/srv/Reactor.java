@@ -6,12 +6,12 @@ import bgu.spl.net.impl.stomp.ConnectionsImpl;
 
 import java.io.IOException;
 import java.net.InetSocketAddress;
-import java.nio.channels.ClosedSelectorException;
-import java.nio.channels.SelectionKey;
-import java.nio.channels.Selector;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 public class Reactor<T> implements Server<T> {
@@ -19,21 +19,60 @@ public class Reactor<T> implements Server<T> {
     private final int port;
     private final Supplier<StompMessagingProtocol<T>> protocolFactory;
     private final Supplier<MessageEncoderDecoder<T>> readerFactory;
-    private final ActorThreadPool pool;
-    private Selector selector;
-    private Thread selectorThread;
-    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final MailboxActorPool pool;
+    private final int numLoops;
+    private final LoopAssignment assignment;
+    private final InlineExecutionPolicy inlinePolicy;
+    private final List<SelectorLoop<T>> loops = new ArrayList<>();
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private ServerSocketChannel serverSock;
     //Additional fields:
     private ConnectionsImpl<T> connections;
 
+    /**
+     * A single selector thread that accepts, reads and writes
+     */
     public Reactor(
             int numThreads,
             int port,
             Supplier<StompMessagingProtocol<T>> protocolFactory,
             Supplier<MessageEncoderDecoder<T>> readerFactory,
             ConnectionsImpl<T> connections) {
+        this(numThreads, 0, LoopAssignment.ROUND_ROBIN, port, protocolFactory, readerFactory, connections);
+    }
+
+    /**
+     * A dedicated acceptor thread handing connections to numLoops selector threads,
+     * numLoops == 0 keeps accepting on the single selector thread
+     */
+    public Reactor(
+            int numThreads,
+            int numLoops,
+            LoopAssignment assignment,
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            ConnectionsImpl<T> connections) {
+        this(numThreads, numLoops, assignment, InlineExecutionPolicy.disabled(), port, protocolFactory, readerFactory, connections);
+    }
+
+    /**
+     * Same as above, small reads may be processed on the selector threads as the policy allows
+     */
+    public Reactor(
+            int numThreads,
+            int numLoops,
+            LoopAssignment assignment,
+            InlineExecutionPolicy inlinePolicy,
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> readerFactory,
+            ConnectionsImpl<T> connections) {
 
-        this.pool = new ActorThreadPool(numThreads);
+        this.pool = new MailboxActorPool(numThreads);
+        this.numLoops = numLoops;
+        this.assignment = assignment;
+        this.inlinePolicy = inlinePolicy;
         this.port = port;
         this.protocolFactory = protocolFactory;
         this.readerFactory = readerFactory;
@@ -42,38 +81,29 @@ public class Reactor<T> implements Server<T> {
 
     @Override
     public void serve() {
-	selectorThread = Thread.currentThread();
-        try (Selector selector = Selector.open();
-                ServerSocketChannel serverSock = ServerSocketChannel.open()) {
-
-            this.selector = selector; //just to be able to close
+        try (ServerSocketChannel serverSock = ServerSocketChannel.open()) {
 
+            this.serverSock = serverSock; //just to be able to close
             serverSock.bind(new InetSocketAddress(port));
-            serverSock.configureBlocking(false);
-            serverSock.register(selector, SelectionKey.OP_ACCEPT);
-			System.out.println("Server started");
-
-            while (!Thread.currentThread().isInterrupted()) {
-
-                selector.select();
-                runSelectionThreadTasks();
-
-                for (SelectionKey key : selector.selectedKeys()) {
 
-                    if (!key.isValid()) {
-                        continue;
-                    } else if (key.isAcceptable()) {
-                        handleAccept(serverSock, selector);
-                    } else {
-                        handleReadWrite(key);
-                    }
+            if (numLoops == 0) {
+                SelectorLoop<T> loop = openLoop();
+                loop.acceptFrom(serverSock);
+                System.out.println("Server started");
+                loop.run();
+            } else {
+                for (int i = 0; i < numLoops; i++) {
+                    new Thread(openLoop(), "selector-loop-" + i).start();
                 }
+                System.out.println("Server started");
 
-                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
-
+                while (!Thread.currentThread().isInterrupted()) {
+                    SocketChannel clientChan = serverSock.accept(); //blocking - this thread only accepts
+                    chooseLoop().register(clientChan);
+                }
             }
 
-        } catch (ClosedSelectorException ex) {
+        } catch (ClosedChannelException ex) {
             //do nothing - server was requested to be closed
         } catch (IOException ex) {
             //this is an error
@@ -81,59 +111,56 @@ public class Reactor<T> implements Server<T> {
         }
 
         System.out.println("server closed!!!");
+        closeLoops();
         pool.shutdown();
     }
 
-    /*package*/ void updateInterestedOps(SocketChannel chan, int ops) {
-        final SelectionKey key = chan.keyFor(selector);
-        if (Thread.currentThread() == selectorThread) {
-            key.interestOps(ops);
-        } else {
-            selectorTasks.add(() -> {
-                key.interestOps(ops);
-            });
-            selector.wakeup();
-        }
-    }
-
-
-    private void handleAccept(ServerSocketChannel serverChan, Selector selector) throws IOException {
-        SocketChannel clientChan = serverChan.accept();
-        clientChan.configureBlocking(false);
-        final NonBlockingConnectionHandler<T> handler = new NonBlockingConnectionHandler<>(
+    /*package*/ NonBlockingConnectionHandler<T> createHandler(SocketChannel clientChan, SelectorLoop<T> loop) {
+        return new NonBlockingConnectionHandler<>(
                 readerFactory.get(),
                 protocolFactory.get(),
                 clientChan,
-                this,
+                loop,
                 connections);
-        clientChan.register(selector, SelectionKey.OP_READ, handler);
     }
 
-    private void handleReadWrite(SelectionKey key) {
-        @SuppressWarnings("unchecked")
-        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
-
-        if (key.isReadable()) {
-            Runnable task = handler.continueRead();
-            if (task != null) {
-                pool.submit(handler, task);
-            }
+    private SelectorLoop<T> openLoop() throws IOException {
+        SelectorLoop<T> loop = new SelectorLoop<>(this, pool, inlinePolicy);
+        synchronized (loops) {
+            loops.add(loop);
         }
+        return loop;
+    }
 
-	    if (key.isValid() && key.isWritable()) {
-            handler.continueWrite();
+    private SelectorLoop<T> chooseLoop() {
+        if (assignment == LoopAssignment.LEAST_LOADED) {
+            SelectorLoop<T> best = loops.get(0);
+            for (SelectorLoop<T> loop : loops) {
+                if (loop.connectionCount() < best.connectionCount())
+                    best = loop;
+            }
+            return best;
         }
+        return loops.get(Math.floorMod(nextLoop.getAndIncrement(), loops.size()));
     }
 
-    private void runSelectionThreadTasks() {
-        while (!selectorTasks.isEmpty()) {
-            selectorTasks.remove().run();
+    private void closeLoops() {
+        synchronized (loops) {
+            for (SelectorLoop<T> loop : loops) {
+                try {
+                    loop.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
         }
     }
 
     @Override
     public void close() throws IOException {
-        selector.close();
+        if (serverSock != null)
+            serverSock.close();
+        closeLoops();
     }
 
 }
@@ -0,0 +1,217 @@
+package bgu.spl.net.srv;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One selector and the thread that runs it. A reactor has one loop that also accepts,
+ * or a dedicated acceptor that hands connections to several loops.
+ */
+public class SelectorLoop<T> implements Runnable {
+
+    private final Reactor<T> reactor;
+    private final MailboxActorPool pool;
+    private final InlineExecutionPolicy inlinePolicy;
+    private final Selector selector;
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<NonBlockingConnectionHandler<T>> pendingWrites = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean wakeupPending = new AtomicBoolean(false);
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private volatile Thread selectorThread;
+
+    public SelectorLoop(Reactor<T> reactor, MailboxActorPool pool, InlineExecutionPolicy inlinePolicy) throws IOException {
+        this.reactor = reactor;
+        this.pool = pool;
+        this.inlinePolicy = inlinePolicy;
+        this.selector = Selector.open();
+    }
+
+    @Override
+    public void run() {
+        selectorThread = Thread.currentThread();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+
+                selector.select();
+                wakeupPending.set(false); //wakeups requested from now on are for the next iteration
+                runSelectionThreadTasks();
+                runPendingWrites();
+
+                for (SelectionKey key : selector.selectedKeys()) {
+
+                    if (!key.isValid()) {
+                        continue;
+                    } else if (key.isAcceptable()) {
+                        handleAccept((ServerSocketChannel) key.channel());
+                    } else {
+                        handleReadWrite(key);
+                    }
+                }
+
+                selector.selectedKeys().clear(); //clear the selected keys set so that we can know about new events
+
+            }
+
+        } catch (ClosedSelectorException ex) {
+            //do nothing - server was requested to be closed
+        } catch (IOException ex) {
+            //this is an error
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * Makes this loop accept connections itself (single loop reactor)
+     */
+    /*package*/ void acceptFrom(ServerSocketChannel serverChan) throws IOException {
+        serverChan.configureBlocking(false);
+        serverChan.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Hands an accepted connection to this loop, may be called from any thread
+     */
+    /*package*/ void register(SocketChannel clientChan) {
+        connectionCount.incrementAndGet();
+        execute(() -> {
+            try {
+                clientChan.configureBlocking(false);
+                clientChan.register(selector, SelectionKey.OP_READ, reactor.createHandler(clientChan, this));
+            } catch (IOException ex) {
+                ex.printStackTrace();
+                connectionClosed();
+                try {
+                    clientChan.close();
+                } catch (IOException ignored) {
+                }
+            }
+        });
+    }
+
+    /*package*/ void connectionClosed() {
+        connectionCount.decrementAndGet();
+    }
+
+    /*package*/ int connectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Sets OP_READ by whether the handler's reading is paused, may be called from any thread.
+     * The state is read when the update runs, so updates from racing pauses and resumes can't
+     * leave it stale whatever order they run in.
+     */
+    /*package*/ void updateReadInterest(NonBlockingConnectionHandler<T> handler) {
+        final SelectionKey key = handler.channel().keyFor(selector);
+        if (key == null)
+            return;
+
+        execute(() -> {
+            if (key.isValid()) {
+                int ops = key.interestOps();
+                key.interestOps(handler.isReadPaused() ? ops & ~SelectionKey.OP_READ : ops | SelectionKey.OP_READ);
+            }
+        });
+    }
+
+    /**
+     * Asks for OP_WRITE on the handler's channel. The handler calls this once per burst of
+     * sends, and all requests made during one loop iteration share a single wakeup.
+     */
+    /*package*/ void requestWrite(NonBlockingConnectionHandler<T> handler) {
+        if (Thread.currentThread() == selectorThread) {
+            enableWrite(handler);
+        } else {
+            pendingWrites.add(handler);
+            wakeup();
+        }
+    }
+
+    /*package*/ MailboxActorPool pool() {
+        return pool;
+    }
+
+    /*package*/ InlineExecutionPolicy inlinePolicy() {
+        return inlinePolicy;
+    }
+
+    /*package*/ void close() throws IOException {
+        selector.close();
+    }
+
+    private void execute(Runnable task) {
+        if (Thread.currentThread() == selectorThread) {
+            task.run();
+        } else {
+            selectorTasks.add(task);
+            wakeup();
+        }
+    }
+
+    private void wakeup() {
+        if (wakeupPending.compareAndSet(false, true)) {
+            selector.wakeup();
+        }
+    }
+
+    private void enableWrite(NonBlockingConnectionHandler<T> handler) {
+        SelectionKey key = handler.channel().keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    /**
+     * Drops OP_WRITE once the handler's queue is drained, leaving OP_READ as it is.
+     * Only called on the selector thread.
+     */
+    /*package*/ void disableWrite(NonBlockingConnectionHandler<T> handler) {
+        SelectionKey key = handler.channel().keyFor(selector);
+        if (key != null && key.isValid()) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void handleAccept(ServerSocketChannel serverChan) throws IOException {
+        SocketChannel clientChan = serverChan.accept();
+        if (clientChan != null) {
+            register(clientChan);
+        }
+    }
+
+    private void handleReadWrite(SelectionKey key) {
+        @SuppressWarnings("unchecked")
+        NonBlockingConnectionHandler<T> handler = (NonBlockingConnectionHandler<T>) key.attachment();
+
+        if (key.isReadable()) {
+            Mailbox.Task task = handler.continueRead(); //null when closed or already processed inline
+            if (task != null) {
+                pool.submit(handler.mailbox(), task);
+            }
+        }
+
+        if (key.isValid() && key.isWritable()) {
+            handler.continueWrite();
+        }
+    }
+
+    private void runSelectionThreadTasks() {
+        while (!selectorTasks.isEmpty()) {
+            selectorTasks.remove().run();
+        }
+    }
+
+    private void runPendingWrites() {
+        NonBlockingConnectionHandler<T> handler;
+        while ((handler = pendingWrites.poll()) != null) {
+            enableWrite(handler);
+        }
+    }
+}
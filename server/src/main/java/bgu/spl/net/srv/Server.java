@@ -5,6 +5,7 @@ import bgu.spl.net.api.StompMessagingProtocol;
 import bgu.spl.net.impl.stomp.ConnectionsImpl;
 
 import java.io.Closeable;
+import java.util.concurrent.ThreadFactory;
 import java.util.function.Supplier;
 
 public interface Server<T> extends Closeable {
@@ -36,6 +37,30 @@ public interface Server<T> extends Closeable {
         };
     }
 
+    /**
+     * A thread per client server on virtual threads: each connection's reader and writer are
+     * virtual threads, so blocking socket I/O parks them instead of holding a platform thread
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new virtual thread per client server
+     */
+    public static <T> Server<T> virtualThreadPerClient(
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+            ConnectionsImpl<T> connections) {
+
+        ThreadFactory virtualThreads = Thread.ofVirtual().name("client-", 0).factory();
+        return new BaseServer<T>(port, protocolFactory, encoderDecoderFactory, connections, virtualThreads) {
+            @Override
+            protected void execute(BlockingConnectionHandler<T>  handler) {
+                threads().newThread(handler).start();
+            }
+        };
+    }
+
     /**
      * This function returns a new instance of a reactor pattern server
      * @param nthreads Number of threads available for protocol processing
@@ -54,4 +79,52 @@ public interface Server<T> extends Closeable {
         return new Reactor<T>(nthreads, port, protocolFactory, encoderDecoderFactory, connections);
     }
 
+    /**
+     * This function returns a new instance of a reactor pattern server that may process small
+     * reads directly on the selector thread
+     * @param nthreads Number of threads available for protocol processing
+     * @param inlinePolicy When reads are processed on the selector thread instead of the pool
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new reactor server
+     */
+    public static <T> Server<T> reactor(
+            int nthreads,
+            InlineExecutionPolicy inlinePolicy,
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+            ConnectionsImpl<T> connections) {
+        return new Reactor<T>(nthreads, 0, LoopAssignment.ROUND_ROBIN, inlinePolicy, port, protocolFactory, encoderDecoderFactory, connections);
+    }
+
+    /**
+     * This function returns a new instance of a reactor pattern server with a dedicated acceptor
+     * thread and several selector threads
+     * @param nthreads Number of threads available for protocol processing
+     * @param nloops Number of selector threads, each with its own selector
+     * @param assignment How accepted connections are spread over the selector threads
+     * @param inlinePolicy When reads are processed on the selector threads instead of the pool
+     * @param port The port for the server socket
+     * @param protocolFactory A factory that creats new MessagingProtocols
+     * @param encoderDecoderFactory A factory that creats new MessageEncoderDecoder
+     * @param <T> The Message Object for the protocol
+     * @return A new multi-selector reactor server
+     */
+    public static <T> Server<T> multiReactor(
+            int nthreads,
+            int nloops,
+            LoopAssignment assignment,
+            InlineExecutionPolicy inlinePolicy,
+            int port,
+            Supplier<StompMessagingProtocol<T>> protocolFactory,
+            Supplier<MessageEncoderDecoder<T>> encoderDecoderFactory,
+            ConnectionsImpl<T> connections) {
+        if (nloops < 1)
+            throw new IllegalArgumentException("Needs at least one selector loop!");
+        return new Reactor<T>(nthreads, nloops, assignment, inlinePolicy, port, protocolFactory, encoderDecoderFactory, connections);
+    }
+
 }
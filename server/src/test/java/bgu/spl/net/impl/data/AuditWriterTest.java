@@ -0,0 +1,65 @@
+package bgu.spl.net.impl.data;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class AuditWriterTest {
+
+	@Test
+	public void failedStatementsArentCountedAsWritten() {
+		List<String> seen = new ArrayList<>();
+		AuditWriter writer = new AuditWriter(batch -> {
+			seen.addAll(batch);
+			if (batch.contains("throw"))
+				throw new IllegalStateException("sink failed");
+			return (int) batch.stream().filter(statement -> statement.startsWith("bad")).count();
+		}, 16, 16, 10, AuditWriter.Overflow.BLOCK);
+
+		writer.submit("good1");
+		writer.submit("bad1");
+		assertTrue(writer.close(5000));
+		assertEquals(List.of("good1", "bad1"), seen);
+		assertTrue(writer.metrics().contains(" written=1 failed=1 "), writer.metrics());
+
+		AuditWriter throwing = new AuditWriter(batch -> {
+			throw new IllegalStateException("sink failed");
+		}, 16, 16, 10, AuditWriter.Overflow.BLOCK);
+		throwing.submit("a");
+		throwing.submit("b");
+		assertTrue(throwing.close(5000));
+		assertTrue(throwing.metrics().contains(" written=0 failed=2 "), throwing.metrics());
+	}
+
+	@Test
+	public void closeDoesntInterruptABatch() throws InterruptedException {
+		CountDownLatch inBatch = new CountDownLatch(1);
+		List<Boolean> interrupted = new ArrayList<>();
+		AuditWriter writer = new AuditWriter(batch -> {
+			inBatch.countDown();
+			try {
+				Thread.sleep(200); //a slow SQL round trip
+			} catch (InterruptedException ex) {
+				interrupted.add(true);
+				return batch.size();
+			}
+			interrupted.add(Thread.currentThread().isInterrupted());
+			return 0;
+		}, 16, 1, 10, AuditWriter.Overflow.BLOCK);
+
+		writer.submit("first");
+		writer.submit("second");
+		assertTrue(inBatch.await(5, TimeUnit.SECONDS));
+		assertTrue(writer.close(5000)); //while the first batch is being written
+		assertEquals(List.of(false, false), interrupted);
+		assertTrue(writer.metrics().contains(" written=2 failed=0 "), writer.metrics());
+		assertFalse(writer.submit("late"));
+	}
+}
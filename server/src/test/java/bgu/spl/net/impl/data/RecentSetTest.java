@@ -0,0 +1,51 @@
+package bgu.spl.net.impl.data;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class RecentSetTest {
+
+	private long now = 0;
+
+	@Test
+	public void collidingKeysDontEvictEachOther() {
+		RecentSet recent = new RecentSet(8, 60000, () -> now); //one set, every key collides
+		assertTrue(recent.add("a\0game1.json\0/g"));
+		assertTrue(recent.add("b\0game2.json\0/g"));
+		for (int event = 0; event < 100; event++) {
+			now++;
+			assertFalse(recent.add("a\0game1.json\0/g"));
+			assertFalse(recent.add("b\0game2.json\0/g"));
+		}
+	}
+
+	@Test
+	public void fullSetEvictsLeastRecentlySeen() {
+		RecentSet recent = new RecentSet(8, 60000, () -> now);
+		for (int i = 0; i < 8; i++) {
+			now++;
+			assertTrue(recent.add("key" + i));
+		}
+		now++;
+		assertFalse(recent.add("key0")); //now the most recent
+		now++;
+		assertTrue(recent.add("key8")); //evicts key1
+		assertFalse(recent.add("key0"));
+		assertTrue(recent.add("key1"));
+	}
+
+	@Test
+	public void reuploadAfterWindowIsNew() {
+		RecentSet recent = new RecentSet(4096, 1000, () -> now);
+		assertTrue(recent.add("a\0game1.json\0/g"));
+		now += 999;
+		assertFalse(recent.add("a\0game1.json\0/g"));
+		now += 1000; //a hit restarts the window
+		assertFalse(recent.add("a\0game1.json\0/g"));
+		now += 1001;
+		assertTrue(recent.add("a\0game1.json\0/g"));
+		assertFalse(recent.add("a\0game1.json\0/g"));
+	}
+}
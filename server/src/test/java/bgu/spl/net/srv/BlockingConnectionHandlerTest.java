@@ -0,0 +1,99 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import bgu.spl.net.api.StompMessagingProtocol;
+import bgu.spl.net.impl.stomp.ChannelRegistry;
+import bgu.spl.net.impl.stomp.ConnectionsImpl;
+import bgu.spl.net.impl.stomp.StompCommand;
+import bgu.spl.net.impl.stomp.StompEncoderDecoderImpl;
+import bgu.spl.net.impl.stomp.StompFrame;
+
+public class BlockingConnectionHandlerTest {
+
+    @Test
+    public void invalidSubscriptionIdReleasesTheConnection() throws Exception {
+        ConnectionsImpl<StompFrame> connections = new ConnectionsImpl<>(new ChannelRegistry(), 1); //one slot
+        SubscribingProtocol protocol = new SubscribingProtocol();
+        AtomicReference<Thread> writer = new AtomicReference<>();
+
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                Socket client = new Socket(server.getInetAddress(), server.getLocalPort())) {
+            BlockingConnectionHandler<StompFrame> handler = new BlockingConnectionHandler<>(server.accept(),
+                    new StompEncoderDecoderImpl(), protocol, connections, task -> {
+                        Thread thread = new Thread(task);
+                        thread.setDaemon(true); //a leaked writer must not keep the test JVM alive
+                        writer.set(thread);
+                        return thread;
+                    });
+            Thread reader = new Thread(handler);
+            reader.start();
+
+            OutputStream out = client.getOutputStream();
+            out.write("SUBSCRIBE\ndestination:/g\nid:abc\n\n\0".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            reader.join(5000);
+            assertFalse(reader.isAlive());
+            assertNotNull(writer.get());
+            writer.get().join(5000);
+            assertFalse(writer.get().isAlive(), "the writer thread is still waiting for writes");
+            assertTrue(protocol.closed.await(0, TimeUnit.MILLISECONDS), "connectionClosed wasn't called");
+            assertFalse(connections.send(protocol.connectionId, StompFrame.create(StompCommand.RECEIPT, null)));
+        }
+
+        connections.registerHandler(new IdleHandler()); //throws IllegalStateException if the slot wasn't freed
+    }
+
+    //SubscribingProtocol - parses the subscription id like the STOMP protocol, throws on a bad one
+    private static class SubscribingProtocol implements StompMessagingProtocol<StompFrame> {
+        private final CountDownLatch closed = new CountDownLatch(1);
+        private int connectionId;
+
+        @Override
+        public void start(int connectionId, Connections<StompFrame> connections) {
+            this.connectionId = connectionId;
+        }
+
+        @Override
+        public void process(StompFrame message) {
+            if (message.getCommand() == StompCommand.SUBSCRIBE) {
+                Integer.parseInt(message.getHeader("id"));
+            }
+        }
+
+        @Override
+        public boolean shouldTerminate() {
+            return false;
+        }
+
+        @Override
+        public void connectionClosed() {
+            closed.countDown();
+        }
+    }
+
+    private static class IdleHandler implements ConnectionHandler<StompFrame> {
+        @Override
+        public void close() throws IOException {
+        }
+
+        @Override
+        public void send(StompFrame msg) {
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+public class MailboxActorPoolTest {
+
+    private static final int ACTORS = 64;
+    private static final int PRODUCERS = 4;
+    private static final int TASKS = 5000; //per producer and actor
+
+    @Test
+    public void everyTaskRunsOnceInSubmissionOrder() throws InterruptedException {
+        MailboxActorPool pool = new MailboxActorPool(4, 2); //a small budget, mailboxes are requeued often
+        Mailbox[] mailboxes = new Mailbox[ACTORS];
+        int[][] lastSeen = new int[ACTORS][PRODUCERS]; //only touched by the actor's own tasks
+        List<String> errors = new ArrayList<>();
+        CountDownLatch done = new CountDownLatch(ACTORS * PRODUCERS * TASKS);
+        for (int i = 0; i < ACTORS; i++) {
+            mailboxes[i] = new Mailbox();
+        }
+
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            int producer = p;
+            producers[p] = new Thread(() -> {
+                for (int seq = 1; seq <= TASKS; seq++) {
+                    for (int actor = 0; actor < ACTORS; actor++) {
+                        pool.submit(mailboxes[actor], new Ordered(lastSeen[actor], producer, seq, errors, done));
+                    }
+                }
+            });
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        try {
+            assertTrue(done.await(30, TimeUnit.SECONDS), done.getCount() + " tasks didn't run");
+            synchronized (errors) {
+                assertEquals(List.of(), errors);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    //Ordered - checks that the tasks of one producer reach its actor in sequence
+    private static class Ordered extends Mailbox.Task {
+        private final int[] lastSeen;
+        private final int producer;
+        private final int seq;
+        private final List<String> errors;
+        private final CountDownLatch done;
+
+        Ordered(int[] lastSeen, int producer, int seq, List<String> errors, CountDownLatch done) {
+            this.lastSeen = lastSeen;
+            this.producer = producer;
+            this.seq = seq;
+            this.errors = errors;
+            this.done = done;
+        }
+
+        @Override
+        public void run() {
+            if (lastSeen[producer] != seq - 1) {
+                synchronized (errors) {
+                    errors.add("producer " + producer + " expected " + (lastSeen[producer] + 1) + " got " + seq);
+                }
+            }
+            lastSeen[producer] = seq;
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package bgu.spl.net.srv;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+
+public class OutboundQueueTest {
+
+    private final List<String> released = new ArrayList<>();
+
+    @Test
+    public void closeLeavesTheBatchToTheWriter() {
+        OutboundQueue<String> queue = new OutboundQueue<>(1 << 20, 16, OutboundQueue.Policy.DISCONNECT, released::add);
+        queue.offer(message("first"), null);
+        queue.gather(5, 16); //the first message only
+        queue.offer(message("second"), null);
+
+        queue.close(); //while the writer holds the batch
+        assertEquals(List.of("second"), released);
+
+        queue.written(); //the writer is done, wrote nothing
+        assertEquals(List.of("second", "first"), released);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void closeReleasesAPartiallyWrittenMessage() {
+        OutboundQueue<String> queue = new OutboundQueue<>(1 << 20, 16, OutboundQueue.Policy.DISCONNECT, released::add);
+        queue.offer(message("first"), null);
+        queue.gather(1 << 16, 16);
+        queue.batch()[0].position(2); //a short write
+        queue.written();
+        assertTrue(released.isEmpty());
+
+        queue.close(); //between writes, nothing is handed to the writer
+        assertEquals(List.of("first"), released);
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void disconnectQueuesTheErrorAndDrains() {
+        OutboundQueue<String> queue = new OutboundQueue<>(1 << 20, 2, OutboundQueue.Policy.DISCONNECT, released::add);
+        long disconnected = counter("disconnected");
+        assertTrue(queue.offer(message("m1"), "1"));
+        queue.gather(1 << 16, 16); //m1 in flight
+        assertTrue(queue.offer(message("m2"), "1"));
+
+        assertFalse(queue.offer(message("m3"), "1")); //over the limit, the caller closes after the ERROR
+        assertEquals(List.of("m3", "m2"), released); //m1 may be partly on the wire already
+        assertEquals(disconnected + 1, counter("disconnected"));
+
+        queue.offerLast(message("error"));
+        assertTrue(queue.offer(message("m4"), null)); //refused quietly from now on
+        assertEquals(List.of("m3", "m2", "m4"), released);
+        assertTrue(queue.isOverflowed());
+
+        assertEquals(List.of("m1"), written(queue)); //the write that was in progress
+        assertEquals(List.of("error"), writeBatch(queue));
+        assertTrue(queue.isEmpty()); //overflowed and empty, the handler closes now
+    }
+
+    @Test
+    public void dropOldestSkipsInFlightAndKeylessFrames() {
+        OutboundQueue<String> queue = new OutboundQueue<>(1 << 20, 3, OutboundQueue.Policy.DROP_OLDEST, released::add);
+        long droppedOldest = counter("droppedOldest");
+        long droppedNewest = counter("droppedNewest");
+        queue.offer(message("a"), "1");
+        queue.gather(1 << 16, 16); //a in flight
+        queue.offer(message("receipt"), null);
+        queue.offer(message("b"), "1");
+
+        assertTrue(queue.offer(message("c"), "1"));
+        assertEquals(List.of("b"), released);
+        assertTrue(queue.offer(message("error"), null)); //keyless, makes room too
+        assertEquals(List.of("b", "c"), released);
+        assertTrue(queue.offer(message("d"), "1")); //nothing left to drop, the new one goes
+        assertEquals(List.of("b", "c", "d"), released);
+        assertTrue(queue.offer(message("receipt2"), null)); //keyless, queued beyond the limit
+        assertEquals(droppedOldest + 2, counter("droppedOldest"));
+        assertEquals(droppedNewest + 1, counter("droppedNewest"));
+
+        assertEquals(List.of("a"), written(queue));
+        assertEquals(List.of("receipt", "error", "receipt2"), writeBatch(queue));
+    }
+
+    @Test
+    public void conflateReplacesTheFrameOfTheSameSubscription() {
+        OutboundQueue<String> queue = new OutboundQueue<>(1 << 20, 2, OutboundQueue.Policy.CONFLATE, released::add);
+        long conflated = counter("conflated");
+        long droppedNewest = counter("droppedNewest");
+        queue.offer(message("sub1-a"), "1");
+        queue.offer(message("sub2-a"), "2");
+
+        assertTrue(queue.offer(message("sub1-b"), "1"));
+        assertTrue(queue.offer(message("sub2-b"), "2"));
+        assertEquals(List.of("sub1-a", "sub2-a"), released);
+        assertEquals(conflated + 2, counter("conflated"));
+
+        queue.gather(1 << 16, 16); //both in flight, neither may be replaced
+        assertTrue(queue.offer(message("sub1-c"), "1"));
+        assertEquals(List.of("sub1-a", "sub2-a", "sub1-c"), released);
+        assertEquals(droppedNewest + 1, counter("droppedNewest"));
+        assertEquals(List.of("sub1-b", "sub2-b"), written(queue));
+    }
+
+    //writeBatch - gathers and writes a batch like a connection's writer
+    private static List<String> writeBatch(OutboundQueue<String> queue) {
+        queue.gather(1 << 16, 16);
+        return written(queue);
+    }
+
+    //written - writes the gathered batch completely, returns its messages
+    private static List<String> written(OutboundQueue<String> queue) {
+        List<String> texts = new ArrayList<>();
+        for (int i = 0; i < queue.batchCount(); i++) {
+            ByteBuffer buffer = queue.batch()[i];
+            byte[] bytes = new byte[buffer.remaining()];
+            buffer.get(bytes);
+            texts.add(new String(bytes, StandardCharsets.UTF_8));
+        }
+        queue.written();
+        return texts;
+    }
+
+    //counter - a policy counter of the shutdown report, they are shared by every queue
+    private static long counter(String name) {
+        PrintStream out = System.out;
+        ByteArrayOutputStream report = new ByteArrayOutputStream();
+        System.setOut(new PrintStream(report, true, StandardCharsets.UTF_8));
+        try {
+            OutboundQueue.printReport();
+        } finally {
+            System.setOut(out);
+        }
+        Matcher value = Pattern.compile("\\b" + name + "=(\\d+)").matcher(report.toString(StandardCharsets.UTF_8));
+        assertTrue(value.find(), name + " isn't reported");
+        return Long.parseLong(value.group(1));
+    }
+
+    private static EncodedMessage<String> message(String text) {
+        return new EncodedMessage<>(text, new ByteBuffer[] {ByteBuffer.wrap(text.getBytes())});
+    }
+}